@@ -0,0 +1,404 @@
+package ShannonCoding;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * @author Lukas
+ */
+
+/**
+ * Round trip check of every way data can be coded: in memory, through direct buffers, files and streams, with
+ * small and default frames.
+ *
+ * Inputs include the edge cases of the format, no bytes, a few bytes and constant bytes, which code into a single
+ * block, next to text, random bytes which are stored and skewed bytes. Every failed case is printed and the check
+ * exits with status 1 if any failed:
+ *
+ *      java -cp out:bench-out ShannonCoding.RoundTripCheck [--text file]
+ */
+public class RoundTripCheck {
+
+    private static final int[] ALL_BLOCK_LENGTHS = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16};
+    //Larger inputs are checked with fewer block lengths, so the check stays quick
+    private static final int[] LARGE_BLOCK_LENGTHS = {1, 3, 8, 12, 16};
+    private static final int LARGE_INPUT = 1 << 10;
+    //Shorter than a byte, so a file of one byte is more than one block
+    private static final int FILE_BLOCK_LENGTH = 4;
+    //Smaller than the larger inputs, so they are sampled
+    private static final int SAMPLE_SIZE = 1000;
+
+    private String textFile = "test.txt";
+    private int cases = 0;
+    private int failed = 0;
+    private Path directory;
+
+    public static void main(String[] args) throws IOException {
+        RoundTripCheck check = new RoundTripCheck();
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].equals("--text"))
+                check.textFile = args[++i];
+            else
+                throw new IllegalArgumentException("Unknown argument " + args[i]);
+        }
+        check.run();
+        System.out.println(check.cases + " cases, " + check.failed + " failed");
+        if (check.failed > 0)
+            System.exit(1);
+    }
+
+    private void run() throws IOException {
+        directory = Files.createTempDirectory("shannon-check");
+        try {
+            Map<String, byte[]> inputs = inputs();
+            for (Map.Entry<String, byte[]> input : inputs.entrySet()) {
+                byte[] data = input.getValue();
+                int[] blockLengths = data.length > LARGE_INPUT ? LARGE_BLOCK_LENGTHS : ALL_BLOCK_LENGTHS;
+                for (int blockLength : blockLengths) {
+                    String name = input.getKey() + "/" + blockLength;
+                    checkMemory(name, data, blockLength);
+                    checkLimited(name, data, blockLength);
+                    checkModel(name, data, blockLength);
+                    checkStream(name, data, blockLength);
+                }
+                checkFile(input.getKey() + "/" + FILE_BLOCK_LENGTH, data, FILE_BLOCK_LENGTH);
+                checkFile(input.getKey() + "/auto", data, Shannon.AUTO_BLOCK_LENGTH);
+                checkMemory(input.getKey() + "/auto", data, Shannon.AUTO_BLOCK_LENGTH);
+            }
+            checkStored(inputs.get("random"));
+            for (int blockLength : ALL_BLOCK_LENGTHS)
+                checkLongCodeWord(blockLength);
+            checkBatch();
+        }
+        finally {
+            delete(directory);
+        }
+    }
+
+    private static void delete(Path path) throws IOException {
+        if (Files.isDirectory(path)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(path)) {
+                for (Path file : files)
+                    delete(file);
+            }
+        }
+        Files.delete(path);
+    }
+
+    private Map<String, byte[]> inputs() throws IOException {
+        Map<String, byte[]> inputs = new LinkedHashMap<>();
+        inputs.put("empty", new byte[0]);
+        inputs.put("one", new byte[]{'a'});
+        inputs.put("two", new byte[]{'a', 'b'});
+        inputs.put("three", new byte[]{0, (byte) 0xFF, 7});
+        inputs.put("constant", filled(5000, (byte) 'a'));
+        inputs.put("zeroes", new byte[5000]);
+        byte[] text = Files.readAllBytes(Paths.get(textFile));
+        inputs.put("text", text);
+        byte[] random = new byte[100000];
+        new Random(1).nextBytes(random);
+        inputs.put("random", random);
+        byte[] skewed = new byte[200000];
+        Random generator = new Random(2);
+        for (int i = 0; i < skewed.length; ++i)
+            skewed[i] = (byte) Math.min(255, Long.numberOfTrailingZeros(generator.nextLong() | Long.MIN_VALUE));
+        inputs.put("skewed", skewed);
+        return inputs;
+    }
+
+    private static byte[] filled(int length, byte value) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, value);
+        return bytes;
+    }
+
+    /**
+     * Codes data as an array and through direct buffers, with small and default frames, interleaved and indexed
+     */
+    private void checkMemory(String name, byte[] data, int blockLength) {
+        for (int frameSize : new int[]{0, 4096}) {
+            for (int options = 0; options < 4; ++options) {
+                boolean interleaved = (options & 1) != 0;
+                boolean indexed = (options & 2) != 0;
+                String caseName = name + " memory frame " + frameSize + (interleaved ? " interleaved" : "")
+                        + (indexed ? " indexed" : "");
+                check(caseName, () -> {
+                    Shannon shannon = new Shannon(blockLength);
+                    shannon.setCodeDataFile(null);
+                    if (frameSize > 0)
+                        shannon.setFrameSize(frameSize);
+                    shannon.setInterleaved(interleaved);
+                    shannon.setIndexed(indexed);
+
+                    byte[] encoded = shannon.encode(data);
+                    expect(data, new Shannon().decode(encoded), "decoded array");
+
+                    ByteBuffer src = ByteBuffer.allocateDirect(Math.max(1, data.length));
+                    src.put(data).flip();
+                    ByteBuffer dst = ByteBuffer.allocateDirect((int) shannon.maxEncodedLength(data.length));
+                    shannon.encode(src, dst);
+                    dst.flip();
+                    if (Shannon.decodedLength(dst.duplicate()) != data.length)
+                        throw new AssertionError("decodedLength differs");
+                    ByteBuffer decoded = ByteBuffer.allocateDirect(Math.max(1, data.length));
+                    new Shannon().decode(dst, decoded);
+                    decoded.flip();
+                    byte[] bytes = new byte[decoded.remaining()];
+                    decoded.get(bytes);
+                    expect(data, bytes, "decoded buffer");
+
+                    if (indexed)
+                        checkRanges(ByteBuffer.wrap(encoded), data);
+                });
+            }
+        }
+    }
+
+    /**
+     * Codes data with codeWords no longer than the blocks, which fits every block there is
+     */
+    private void checkLimited(String name, byte[] data, int blockLength) {
+        check(name + " limited", () -> {
+            Shannon shannon = new Shannon(blockLength);
+            shannon.setCodeDataFile(null);
+            shannon.setMaxCodeLength(blockLength);
+            expect(data, new Shannon().decode(shannon.encode(data)), "decoded array");
+        });
+    }
+
+    /**
+     * Codes data with a model trained on it, with the dictionary inline and referred to by id, then decodes it with
+     * the model and with the model saved and loaded again
+     */
+    private void checkModel(String name, byte[] data, int blockLength) {
+        //Model needs at least one block to train on
+        if (data.length == 0)
+            return;
+        for (boolean referModel : new boolean[]{false, true}) {
+            check(name + " model" + (referModel ? " referred" : ""), () -> {
+                ShannonModel model = ShannonModel.train(data, blockLength);
+                ShannonEncoder encoder = model.newEncoder();
+                encoder.setReferModel(referModel);
+                byte[] encoded = encoder.encode(data);
+                if (encoded.length > encoder.maxEncodedLength(data.length))
+                    throw new AssertionError("encoded length is over maxEncodedLength");
+                expect(data, model.newDecoder().decode(encoded), "model decoder");
+
+                ByteArrayOutputStream saved = new ByteArrayOutputStream();
+                model.save(saved);
+                ShannonModel loaded = ShannonModel.load(new ByteArrayInputStream(saved.toByteArray()));
+                if (loaded.getId() != model.getId())
+                    throw new AssertionError("loaded model has another id");
+                expect(data, loaded.newDecoder().decode(encoded), "loaded model decoder");
+                ModelCache models = new ModelCache();
+                models.put(loaded);
+                Shannon shannon = new Shannon();
+                shannon.setModelCache(models);
+                expect(data, shannon.decode(encoded), "decode with loaded model");
+            });
+        }
+    }
+
+    private void checkStream(String name, byte[] data, int blockLength) {
+        for (boolean interleaved : new boolean[]{false, true}) {
+            check(name + " stream" + (interleaved ? " interleaved" : ""), () -> {
+                ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+                try (ShannonOutputStream out = new ShannonOutputStream(encoded, blockLength, 4096)) {
+                    out.setInterleaved(interleaved);
+                    //Written in uneven pieces, so chunks don't line up with writes
+                    for (int from = 0; from < data.length; from += 1000)
+                        out.write(data, from, Math.min(1000, data.length - from));
+                }
+                ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+                try (InputStream in = new ShannonInputStream(new ByteArrayInputStream(encoded.toByteArray()))) {
+                    byte[] buffer = new byte[777];
+                    int count;
+                    while ((count = in.read(buffer)) >= 0)
+                        decoded.write(buffer, 0, count);
+                }
+                expect(data, decoded.toByteArray(), "decoded stream");
+            });
+        }
+    }
+
+    /**
+     * Codes data as a file with small frames, with the code of the whole file and of a sample, pipelined or not,
+     * checks the reported statistics and reads ranges of the indexed file
+     * @param blockLength block length in bits or AUTO_BLOCK_LENGTH
+     */
+    private void checkFile(String name, byte[] data, int blockLength) {
+        //Files of no more than one block are rejected
+        if (data.length == 0)
+            return;
+        for (int options = 0; options < 4; ++options) {
+            boolean sampled = (options & 1) != 0;
+            boolean pipelined = (options & 2) != 0;
+            check(name + " file" + (sampled ? " sampled" : "") + (pipelined ? " pipelined" : ""), () -> {
+                Path dataFile = directory.resolve("data");
+                Path encodedFile = directory.resolve("encoded");
+                Path decodedFile = directory.resolve("decoded");
+                Files.write(dataFile, data);
+
+                CodecStats[] stats = new CodecStats[1];
+                Shannon shannon = new Shannon(blockLength);
+                shannon.setCodeDataFile(null);
+                shannon.setFrameSize(4096);
+                if (sampled)
+                    shannon.setSampleSize(SAMPLE_SIZE);
+                shannon.setIndexed(true);
+                shannon.setPipelined(pipelined);
+                shannon.setListener(new CodecListener() {
+                    @Override
+                    public void finished(CodecStats encodeStats) {
+                        stats[0] = encodeStats;
+                    }
+                });
+                shannon.encode(dataFile.toString(), encodedFile.toString());
+                if (stats[0].getBytesIn() != data.length || stats[0].getBytesOut() != Files.size(encodedFile))
+                    throw new AssertionError("statistics differ from file lengths");
+                //Statistics of a sampled code still count every block of the file
+                long blocks = (data.length * 8L + stats[0].getBlockLength() - 1) / stats[0].getBlockLength();
+                if (stats[0].getBlocks() != blocks || stats[0].isSampled() != (sampled && data.length > SAMPLE_SIZE))
+                    throw new AssertionError("statistics differ from blocks of the file");
+
+                Shannon decoder = new Shannon();
+                decoder.setPipelined(pipelined);
+                decoder.decode(encodedFile.toString(), decodedFile.toString());
+                expect(data, Files.readAllBytes(decodedFile), "decoded file");
+
+                try (ShannonRangeReader reader = new ShannonRangeReader(encodedFile.toString())) {
+                    checkRanges(reader, data);
+                }
+            });
+        }
+    }
+
+    /**
+     * Codes random data, which coding doesn't shorten, and checks it is stored with nothing but headers added
+     */
+    private void checkStored(byte[] random) {
+        //Random data holds too few blocks of 16 bits to look random, those are coded with a dictionary
+        for (int blockLength : new int[]{1, 3, 8, 12}) {
+            check("random/" + blockLength + " stored", () -> {
+                Shannon shannon = new Shannon(blockLength);
+                shannon.setCodeDataFile(null);
+                shannon.setFrameSize(4096);
+                byte[] encoded = shannon.encode(random);
+                long frames = (random.length + 4095) / 4096;
+                if (encoded.length > FrameFormat.maxHeaderLength(0, blockLength)
+                        + frames * FrameFormat.FRAME_HEADER_LENGTH + random.length)
+                    throw new AssertionError("stored data is longer than data and headers");
+                expect(random, new Shannon().decode(encoded), "decoded array");
+            });
+        }
+    }
+
+    /**
+     * Codes zero blocks with a single block of 1 among them, which gets a codeWord of 32 bits, the longest there is
+     */
+    private void checkLongCodeWord(int blockLength) {
+        check("long codeWord/" + blockLength, () -> {
+            long[] frequencies = new long[1 << blockLength];
+            frequencies[0] = (1L << 32) - 1;
+            frequencies[1] = 1;
+            ShannonModel model = ShannonModel.fromFrequencies(frequencies, blockLength);
+            if (model.getCodeBook().maxCodeWordLength() != 32)
+                throw new AssertionError("longest codeWord isn't 32 bits");
+
+            //Whole bytes of 3200 blocks, with block 1 between codeWords not yet written
+            byte[] data = new byte[400 * blockLength];
+            long bit = 1601L * blockLength + blockLength - 1;
+            data[(int) (bit >>> 3)] |= 0x80 >>> (bit & 7);
+            byte[] encoded = model.newEncoder().encode(data);
+            expect(data, model.newDecoder().decode(encoded), "model decoder");
+        });
+    }
+
+    /**
+     * Codes a directory of files in one batch, then checks listed files of the same name fail instead of being
+     * coded into the same output
+     */
+    private void checkBatch() {
+        check("batch", () -> {
+            Path inputs = Files.createDirectories(directory.resolve("batch/inputs"));
+            Map<Path, byte[]> files = new LinkedHashMap<>();
+            for (String name : new String[]{"a/x.txt", "b/x.txt", "c/y.txt"}) {
+                Path file = inputs.resolve(name);
+                Files.createDirectories(file.getParent());
+                byte[] data = (name + " of the batch").getBytes("UTF-8");
+                Files.write(file, data);
+                files.put(file, data);
+            }
+            Path encodedDir = directory.resolve("batch/encoded");
+            Path decodedDir = directory.resolve("batch/decoded");
+
+            BatchCodec encoder = new BatchCodec(true, 8);
+            BatchCodec decoder = new BatchCodec(false, 0);
+            expectSucceeded(encoder.run(encoder.listInputs(inputs.toString()), inputs, encodedDir));
+            expectSucceeded(decoder.run(decoder.listInputs(encodedDir.toString()), encodedDir, decodedDir));
+            for (Map.Entry<Path, byte[]> file : files.entrySet())
+                expect(file.getValue(), Files.readAllBytes(decodedDir.resolve(inputs.relativize(file.getKey()))),
+                        "decoded " + file.getKey());
+
+            List<BatchCodec.Result> listed = encoder.run(new ArrayList<>(files.keySet()), null,
+                    directory.resolve("batch/listed"));
+            if (listed.get(0).getError() == null || listed.get(1).getError() == null
+                    || listed.get(2).getError() != null)
+                throw new AssertionError("listed files of the same name didn't fail alone");
+        });
+    }
+
+    private static void expectSucceeded(List<BatchCodec.Result> results) {
+        for (BatchCodec.Result result : results) {
+            if (result.getError() != null)
+                throw new AssertionError(result.getInput() + " failed: " + result.getError());
+        }
+    }
+
+    private static void checkRanges(ByteBuffer encoded, byte[] data) throws IOException {
+        try (ShannonRangeReader reader = new ShannonRangeReader(encoded, null)) {
+            checkRanges(reader, data);
+        }
+    }
+
+    /**
+     * Reads the whole data, ranges at its ends and random ranges
+     */
+    private static void checkRanges(ShannonRangeReader reader, byte[] data) throws IOException {
+        if (reader.length() != data.length)
+            throw new AssertionError("range reader length differs");
+        expect(data, reader.decodeRange(0, data.length), "whole range");
+        Random random = new Random(data.length);
+        for (int i = 0; i < 20 && data.length > 0; ++i) {
+            int from = i == 0 ? data.length - 1 : random.nextInt(data.length);
+            int length = random.nextInt(Math.min(10000, data.length - from) + 1);
+            expect(Arrays.copyOfRange(data, from, from + length), reader.decodeRange(from, length),
+                    "range " + from + " + " + length);
+        }
+    }
+
+    private static void expect(byte[] expected, byte[] actual, String what) {
+        if (!Arrays.equals(expected, actual))
+            throw new AssertionError(what + " differs from original");
+    }
+
+    private void check(String name, Check check) {
+        cases++;
+        try {
+            check.run();
+        }
+        catch (Exception | AssertionError e) {
+            failed++;
+            System.out.println("FAILED " + name + ": " + e);
+        }
+    }
+
+    private interface Check {
+        void run() throws IOException;
+    }
+}
@@ -0,0 +1,247 @@
+package ShannonCoding;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * @author Lukas
+ */
+
+/**
+ * Benchmarks of bit I/O, frequency counting, code book building, encoding and decoding.
+ *
+ * Every benchmark is run a few times to warm the JIT up, then measured a few more times and the median is
+ * reported. Results can be saved as a baseline and later runs compared against it:
+ *
+ *      java -cp out:bench-out ShannonCoding.ShannonBenchmark [options]
+ *      --text file        file used as the text corpus, test.txt by default
+ *      --size MB          size of every corpus, text is repeated up to it, 8 by default
+ *      --blocks list      block lengths, 2,4,8,12,16 by default
+ *      --filter text      runs only benchmarks whose name contains text
+ *      --warmup n         warmup runs, 3 by default
+ *      --runs n           measured runs, 5 by default
+ *      --sequential       counts, encodes and decodes on one core
+ *      --interleaved      codes every frame into four interleaved streams
+ *      --save file        saves results as a baseline
+ *      --compare file     prints change against a saved baseline
+ */
+public class ShannonBenchmark {
+
+    private static final int[] BIT_WIDTHS = {1, 4, 8, 13, 16, 32, 57};
+
+    //Keeps results of benchmarks alive, so JIT can't drop the work
+    private static volatile long sink;
+
+    private String textFile = "test.txt";
+    private int size = 8 << 20;
+    private int[] blockLengths = {2, 4, 8, 12, 16};
+    private String filter = "";
+    private int warmup = 3;
+    private int runs = 5;
+    private boolean parallel = true;
+    private boolean interleaved = false;
+    private String saveFile;
+    private String compareFile;
+
+    //Median nanoseconds of benchmarks by name, in order they were run
+    private final Map<String, Long> results = new LinkedHashMap<>();
+
+    public static void main(String[] args) throws IOException {
+        ShannonBenchmark benchmark = new ShannonBenchmark();
+        benchmark.parseArguments(args);
+        benchmark.run();
+    }
+
+    private void parseArguments(String[] args) {
+        for (int i = 0; i < args.length; ++i) {
+            switch (args[i]) {
+                case "--text": textFile = args[++i]; break;
+                case "--size": size = Integer.parseInt(args[++i]) << 20; break;
+                case "--blocks": blockLengths = parseList(args[++i]); break;
+                case "--filter": filter = args[++i]; break;
+                case "--warmup": warmup = Integer.parseInt(args[++i]); break;
+                case "--runs": runs = Integer.parseInt(args[++i]); break;
+                case "--sequential": parallel = false; break;
+                case "--interleaved": interleaved = true; break;
+                case "--save": saveFile = args[++i]; break;
+                case "--compare": compareFile = args[++i]; break;
+                default: throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+    }
+
+    private static int[] parseList(String list) {
+        String[] parts = list.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; ++i)
+            values[i] = Integer.parseInt(parts[i].trim());
+        return values;
+    }
+
+    private void run() throws IOException {
+        Map<String, Long> baseline = compareFile == null ? null : readResults(compareFile);
+
+        Map<String, byte[]> corpora = new LinkedHashMap<>();
+        corpora.put("text", textCorpus());
+        corpora.put("random", randomCorpus());
+        corpora.put("skewed", skewedCorpus());
+
+        System.out.printf("%-40s %12s %10s %10s%n", "benchmark", "ms/op", "MB/s", "change");
+
+        for (int width : BIT_WIDTHS) {
+            benchmarkWriteBits(width, baseline);
+            benchmarkReadBits(width, baseline);
+        }
+
+        for (Map.Entry<String, byte[]> corpus : corpora.entrySet()) {
+            for (int blockLength : blockLengths)
+                benchmarkCodec(corpus.getKey(), corpus.getValue(), blockLength, baseline);
+        }
+
+        if (saveFile != null)
+            writeResults(saveFile);
+    }
+
+    private void benchmarkWriteBits(int width, Map<String, Long> baseline) throws IOException {
+        int count = (int) ((long) size * 8 / width);
+        ByteBuffer target = ByteBuffer.allocate(size + 8);
+        long mask = (1L << width) - 1;
+        measure("writeBits/" + width, size, baseline, () -> {
+            target.clear();
+            try (BufferedBitWriter bw = new BufferedBitWriter(target)) {
+                for (int i = 0; i < count; ++i)
+                    bw.writeBits(i * 0x9E3779B97F4A7C15L & mask, width);
+            }
+            return target.position();
+        });
+    }
+
+    private void benchmarkReadBits(int width, Map<String, Long> baseline) throws IOException {
+        int count = (int) ((long) size * 8 / width);
+        ByteBuffer source = ByteBuffer.wrap(randomCorpus());
+        measure("readBits/" + width, size, baseline, () -> {
+            long sum = 0;
+            try (BufferedBitReader br = new BufferedBitReader(source)) {
+                for (int i = 0; i < count; ++i)
+                    sum += br.readBits(width);
+            }
+            return sum;
+        });
+    }
+
+    private void benchmarkCodec(String corpus, byte[] data, int blockLength, Map<String, Long> baseline)
+            throws IOException {
+        String suffix = "/" + corpus + "/" + blockLength;
+        ByteBuffer source = ByteBuffer.wrap(data);
+
+        measure("frequencies" + suffix, data.length, baseline,
+                () -> FrequencyCounter.count(source, blockLength).length);
+
+        long[] frequencies = FrequencyCounter.count(source, blockLength);
+        measure("codeBook" + suffix, data.length, baseline, () -> CodeBook.of(frequencies, blockLength).size());
+
+        Shannon shannon = new Shannon(blockLength);
+        shannon.setParallel(parallel);
+        shannon.setInterleaved(interleaved);
+        ByteBuffer encoded = ByteBuffer.allocate((int) shannon.maxEncodedLength(data.length));
+        measure("encode" + suffix, data.length, baseline, () -> {
+            encoded.clear();
+            return shannon.encode(source.duplicate(), encoded);
+        });
+
+        //Encoding again, encode benchmark could have been filtered out
+        encoded.clear();
+        shannon.encode(source.duplicate(), encoded);
+        encoded.flip();
+        ByteBuffer decoded = ByteBuffer.allocate(data.length);
+        measure("decode" + suffix, data.length, baseline, () -> {
+            decoded.clear();
+            return shannon.decode(encoded.duplicate(), decoded);
+        });
+        decoded.flip();
+        //Nothing is decoded if decode benchmark was filtered out
+        if (("decode" + suffix).contains(filter) && !decoded.equals(source))
+            throw new IllegalStateException("Decoded data of " + suffix + " differs from original");
+    }
+
+    /**
+     * Runs benchmark warmup + runs times and records median time of measured runs
+     * @param bytes bytes processed by one run, used for throughput
+     */
+    private void measure(String name, long bytes, Map<String, Long> baseline, Operation operation)
+            throws IOException {
+        if (!name.contains(filter))
+            return;
+
+        for (int i = 0; i < warmup; ++i)
+            sink += operation.run();
+
+        long[] times = new long[runs];
+        for (int i = 0; i < runs; ++i) {
+            long start = System.nanoTime();
+            sink += operation.run();
+            times[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(times);
+        long median = times[runs / 2];
+        results.put(name, median);
+
+        String change = "";
+        if (baseline != null && baseline.containsKey(name))
+            change = String.format("%+.1f%%", 100.0 * (median - baseline.get(name)) / baseline.get(name));
+        System.out.printf("%-40s %12.3f %10.1f %10s%n", name, median / 1e6, bytes / (median / 1e9) / (1 << 20), change);
+    }
+
+    private byte[] textCorpus() throws IOException {
+        byte[] text = Files.readAllBytes(Paths.get(textFile));
+        byte[] corpus = new byte[size];
+        for (int i = 0; i < size; i += text.length)
+            System.arraycopy(text, 0, corpus, i, Math.min(text.length, size - i));
+        return corpus;
+    }
+
+    private byte[] randomCorpus() {
+        byte[] corpus = new byte[size];
+        new Random(1).nextBytes(corpus);
+        return corpus;
+    }
+
+    /**
+     * @return bytes of geometric distribution, every next value is half as probable
+     */
+    private byte[] skewedCorpus() {
+        byte[] corpus = new byte[size];
+        Random random = new Random(2);
+        for (int i = 0; i < size; ++i)
+            corpus[i] = (byte) Math.min(255, Long.numberOfTrailingZeros(random.nextLong() | Long.MIN_VALUE));
+        return corpus;
+    }
+
+    private void writeResults(String file) throws IOException {
+        try (BufferedWriter bw = new BufferedWriter(new FileWriter(file))) {
+            for (Map.Entry<String, Long> result : results.entrySet())
+                bw.write(result.getKey() + "\t" + result.getValue() + System.lineSeparator());
+        }
+    }
+
+    private static Map<String, Long> readResults(String file) throws IOException {
+        Map<String, Long> results = new HashMap<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] parts = line.split("\t");
+                if (parts.length == 2)
+                    results.put(parts[0], Long.parseLong(parts[1]));
+            }
+        }
+        return results;
+    }
+
+    private interface Operation {
+        //Returns some value of the result, so it is not optimized away
+        long run() throws IOException;
+    }
+}
@@ -1,6 +1,19 @@
+import ShannonCoding.BatchCodec;
+import ShannonCoding.CodecListener;
+import ShannonCoding.CodecPhase;
+import ShannonCoding.CodecStats;
+import ShannonCoding.ModelCache;
 import ShannonCoding.Shannon;
+import ShannonCoding.ShannonInputStream;
+import ShannonCoding.ShannonModel;
+import ShannonCoding.ShannonOutputStream;
+import ShannonCoding.ShannonRangeReader;
 
-import java.io.FileNotFoundException;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
 
 
 /**
@@ -9,20 +22,153 @@ import java.io.FileNotFoundException;
 
 public class Main {
 
-    public static void main(String[] args) throws FileNotFoundException {
-        if (args.length == 4) {
-            if (args[0].equals("encode")) {
-                Shannon sh = new Shannon(Integer.parseInt(args[3]));
-                sh.encode(args[1], args[2]);
-            } else
-                throw new IllegalArgumentException("Incorrect argument");
+    //File name which stands for stdin or stdout
+    private static final String STANDARD_STREAM = "-";
+
+    //Block length argument which picks block length of every input
+    private static final String AUTO = "auto";
+
+    //Prints every phase and statistics once finished
+    private static final CodecListener CONSOLE_LISTENER = new CodecListener() {
+        @Override
+        public void phaseStarted(CodecPhase phase) {
+            System.out.println(phase.getDescription() + "...");
+        }
+
+        @Override
+        public void phaseFinished(CodecPhase phase, long nanos) {
+            System.out.println("FINISHED " + phase.getDescription() + ", TIME ELAPSED: " + nanos / 1000000 + " milis");
+        }
+
+        @Override
+        public void finished(CodecStats stats) {
+            System.out.println(stats);
+        }
+    };
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("batch")) {
+            batch(args);
+        } else if (args.length == 5 && args[0].equals("range")) {
+            //range encodedFile offset length decodedFile
+            try (ShannonRangeReader reader = new ShannonRangeReader(args[1]);
+                 OutputStream out = openOutput(args[4])) {
+                out.write(reader.decodeRange(Long.parseLong(args[2]), Integer.parseInt(args[3])));
+            }
+        } else if (args.length == 4 && args[0].equals("train")) {
+            //train sampleFile modelDir blockLength
+            ShannonModel model = ShannonModel.train(args[1], Integer.parseInt(args[3]));
+            Path file = new ModelCache(Paths.get(args[2])).save(model);
+            System.out.println("MODEL " + file + " OF " + model.getDictionarySize() + " BLOCKS SAVED");
+        } else if (args.length == 4 && args[0].equals("decode")) {
+            //decode encodedFile decodedFile modelDir
+            Shannon sh = new Shannon();
+            sh.setListener(CONSOLE_LISTENER);
+            sh.setModelCache(new ModelCache(Paths.get(args[3])));
+            sh.decode(args[1], args[2]);
+        } else if ((args.length == 4 || args.length == 5) && args[0].equals("encode")) {
+            if (args.length == 4 && !args[3].matches("\\d+|" + AUTO)) {
+                //encode dataFile encodedFile modelFile
+                Shannon sh = new Shannon();
+                sh.setListener(CONSOLE_LISTENER);
+                sh.encode(args[1], args[2], ShannonModel.load(args[3]));
+            } else {
+                //encode dataFile encodedFile blockLength|auto [maxCodeLength]
+                int blockLength = parseBlockLength(args[3]);
+                if (args[1].equals(STANDARD_STREAM) || args[2].equals(STANDARD_STREAM)) {
+                    //Stream header holds one block length for all the chunks, which are coded as they come
+                    if (blockLength == Shannon.AUTO_BLOCK_LENGTH)
+                        throw new IllegalArgumentException("Block length can't be " + AUTO + " for stdin or stdout");
+                    try (InputStream in = openInput(args[1]);
+                         ShannonOutputStream out = new ShannonOutputStream(openOutput(args[2]), blockLength)) {
+                        if (args.length == 5)
+                            out.setMaxCodeLength(Integer.parseInt(args[4]));
+                        copy(in, out);
+                    }
+                } else {
+                    Shannon sh = new Shannon(blockLength);
+                    if (args.length == 5)
+                        sh.setMaxCodeLength(Integer.parseInt(args[4]));
+                    sh.setListener(CONSOLE_LISTENER);
+                    sh.encode(args[1], args[2]);
+                }
+            }
         } else if (args.length == 3) {
             if (args[0].equals("decode")) {
-                Shannon sh = new Shannon();
-                sh.decode(args[1], args[2]);
+                if (args[1].equals(STANDARD_STREAM) || args[2].equals(STANDARD_STREAM)) {
+                    try (InputStream in = new ShannonInputStream(openInput(args[1]));
+                         OutputStream out = openOutput(args[2])) {
+                        copy(in, out);
+                    }
+                } else {
+                    Shannon sh = new Shannon();
+                    sh.setListener(CONSOLE_LISTENER);
+                    sh.decode(args[1], args[2]);
+                }
             } else
                 throw new IllegalArgumentException("Incorrect argument");
         } else
             throw new IllegalArgumentException("Incorrect arguments");
     }
+
+    /**
+     * batch encode input outputDir blockLength|auto [concurrency]
+     * batch decode input outputDir [concurrency]
+     * input is a directory or @file with one file name per line, report.tsv is written to outputDir
+     */
+    private static void batch(String[] args) throws IOException {
+        boolean encoding;
+        if (args.length > 1 && args[1].equals("encode") && (args.length == 5 || args.length == 6))
+            encoding = true;
+        else if (args.length > 1 && args[1].equals("decode") && (args.length == 4 || args.length == 5))
+            encoding = false;
+        else
+            throw new IllegalArgumentException("Incorrect arguments");
+
+        BatchCodec batch = new BatchCodec(encoding, encoding ? parseBlockLength(args[4]) : 0);
+        int concurrencyArgument = encoding ? 5 : 4;
+        if (args.length > concurrencyArgument)
+            batch.setConcurrency(Integer.parseInt(args[concurrencyArgument]));
+
+        Path inputRoot = args[2].startsWith("@") ? null : Paths.get(args[2]);
+        Path outputDir = Paths.get(args[3]);
+        long startTime = System.currentTimeMillis();
+        List<BatchCodec.Result> results = batch.run(batch.listInputs(args[2]), inputRoot, outputDir);
+
+        Files.createDirectories(outputDir);
+        try (BufferedWriter bw = Files.newBufferedWriter(outputDir.resolve("report.tsv"))) {
+            BatchCodec.writeReport(results, bw);
+        }
+
+        int failed = 0;
+        for (BatchCodec.Result result : results) {
+            if (result.getError() != null) {
+                failed++;
+                System.out.println("FAILED " + result.getInput() + ": " + result.getError());
+            }
+        }
+        System.out.println("FINISHED " + results.size() + " FILES, " + failed + " FAILED, TIME ELAPSED: "
+                + (System.currentTimeMillis() - startTime) + " milis");
+        if (failed > 0)
+            System.exit(1);
+    }
+
+    private static InputStream openInput(String name) throws IOException {
+        return name.equals(STANDARD_STREAM) ? System.in : new FileInputStream(name);
+    }
+
+    private static OutputStream openOutput(String name) throws IOException {
+        return name.equals(STANDARD_STREAM) ? new BufferedOutputStream(System.out) : new FileOutputStream(name);
+    }
+
+    private static int parseBlockLength(String arg) {
+        return arg.equals(AUTO) ? Shannon.AUTO_BLOCK_LENGTH : Integer.parseInt(arg);
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        byte[] buffer = new byte[1 << 16];
+        int n;
+        while ((n = in.read(buffer)) != -1)
+            out.write(buffer, 0, n);
+    }
 }
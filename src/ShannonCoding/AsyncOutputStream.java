@@ -0,0 +1,179 @@
+package ShannonCoding;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * @author Lukas
+ */
+
+/**
+ * Output stream which writes to the underlying stream on its own thread, so the caller codes on while the
+ * device is busy.
+ *
+ * Bytes are collected into one of bufferCount buffers. Full buffers are queued to the writer thread and
+ * return to the pool once written, so no more buffers are ever allocated and the caller waits only when
+ * all of them are queued. Failure of the writer thread is thrown by the next call.
+ */
+final class AsyncOutputStream extends OutputStream {
+
+    //Queued after the last buffer
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final OutputStream out;
+    private final int bufferCount;
+    private final BlockingQueue<ByteBuffer> free;
+    private final BlockingQueue<ByteBuffer> full;
+    private final Thread writer;
+
+    private volatile IOException failure;
+
+    //Buffer being filled by the caller
+    private ByteBuffer buffer;
+    private boolean closed = false;
+
+    AsyncOutputStream(OutputStream out, int bufferSize, int bufferCount) {
+        if (bufferCount < 2)
+            throw new IllegalArgumentException("At least two buffers are needed");
+        this.out = out;
+        this.bufferCount = bufferCount;
+        this.free = new ArrayBlockingQueue<>(bufferCount);
+        this.full = new ArrayBlockingQueue<>(bufferCount);
+        for (int i = 1; i < bufferCount; ++i)
+            free.add(ByteBuffer.allocate(bufferSize));
+        this.buffer = ByteBuffer.allocate(bufferSize);
+
+        this.writer = new Thread(this::drain, "shannon-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (!buffer.hasRemaining())
+            send();
+        buffer.put((byte) b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off)
+            throw new IndexOutOfBoundsException();
+        ensureOpen();
+        while (len > 0) {
+            if (!buffer.hasRemaining())
+                send();
+            int count = Math.min(len, buffer.remaining());
+            buffer.put(b, off, count);
+            off += count;
+            len -= count;
+        }
+    }
+
+    /**
+     * Waits until every byte written so far reached the underlying stream, then flushes it
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        if (buffer.position() > 0)
+            send();
+        synchronized (this) {
+            //Writer is idle once every buffer but the current one is back in the pool
+            while (free.size() < bufferCount - 1 && failure == null) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+        }
+        checkFailure();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        try {
+            flush();
+        }
+        finally {
+            closed = true;
+            full.offer(END);
+            try {
+                writer.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            out.close();
+        }
+    }
+
+    /**
+     * Queues current buffer to the writer and takes a free one
+     */
+    private void send() throws IOException {
+        checkFailure();
+        buffer.flip();
+        try {
+            full.put(buffer);
+            buffer = free.take();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        checkFailure();
+    }
+
+    /**
+     * Writer thread, writes queued buffers in order until END
+     */
+    private void drain() {
+        try {
+            while (true) {
+                ByteBuffer next = full.take();
+                if (next == END)
+                    return;
+                //After a failure buffers are only returned, so the caller doesn't wait for them forever
+                if (failure == null) {
+                    try {
+                        out.write(next.array(), 0, next.limit());
+                    }
+                    catch (IOException e) {
+                        failure = e;
+                    }
+                }
+                next.clear();
+                free.put(next);
+                synchronized (this) {
+                    notifyAll();
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            failure = new InterruptedIOException();
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        IOException failure = this.failure;
+        if (failure != null)
+            throw new IOException("Writing failed", failure);
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed)
+            throw new IOException("Stream is closed");
+    }
+}
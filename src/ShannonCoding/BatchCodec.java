@@ -0,0 +1,222 @@
+package ShannonCoding;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * @author Lukas
+ */
+
+/**
+ * Encodes or decodes many files in one JVM.
+ *
+ * Files are coded concurrently by a bounded pool of threads, every thread keeps its own Shannon instance for all
+ * its files. Each file is coded on one core, so small files don't pay for frame parallelism they can't use.
+ * Failure of one file is recorded in its result and doesn't stop the others.
+ */
+public class BatchCodec {
+
+    //Encoded file extension
+    public static final String EXTENSION = ".shn";
+
+    //Files up to this size are read into memory instead of being mapped
+    private static final long IN_MEMORY_SIZE = 16 << 20;
+
+    private final boolean encoding;
+    private final int blockLength;
+
+    private int concurrency = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * @param blockLength block length for encoding or Shannon.AUTO_BLOCK_LENGTH, ignored when decoding
+     */
+    public BatchCodec(boolean encoding, int blockLength) {
+        if (encoding && blockLength != Shannon.AUTO_BLOCK_LENGTH && (blockLength < 1 || blockLength > 16))
+            throw new IllegalArgumentException("Block length must be between 1 and 16");
+        this.encoding = encoding;
+        this.blockLength = blockLength;
+    }
+
+    /**
+     * @param concurrency most files which are coded at once
+     */
+    public void setConcurrency(int concurrency) {
+        if (concurrency < 1)
+            throw new IllegalArgumentException("Concurrency must be positive");
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * @param input directory, which is searched recursively, or file with one file name per line prefixed by @
+     * @return input files, only encoded files of a directory when decoding
+     */
+    public List<Path> listInputs(String input) throws IOException {
+        if (input.startsWith("@")) {
+            try (Stream<String> lines = Files.lines(Paths.get(input.substring(1)))) {
+                return lines.map(String::trim).filter(line -> !line.isEmpty()).map(Paths::get)
+                        .collect(Collectors.toList());
+            }
+        }
+        try (Stream<Path> files = Files.walk(Paths.get(input))) {
+            return files.filter(Files::isRegularFile)
+                    .filter(file -> encoding || file.toString().endsWith(EXTENSION))
+                    .sorted().collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Codes every input into outputDir. Inputs under inputRoot keep their relative path, others are placed
+     * straight into outputDir. Inputs which would be coded into the same output, like listed files of the same
+     * name from different directories, all fail without being coded
+     * @param inputRoot directory inputs were listed from, null if they came from a list
+     * @return results in the same order as inputs
+     */
+    public List<Result> run(List<Path> inputs, Path inputRoot, Path outputDir) throws IOException {
+        ThreadLocal<Shannon> codecs = ThreadLocal.withInitial(() -> {
+            Shannon shannon = new Shannon(blockLength);
+            shannon.setParallel(false);
+            shannon.setCodeDataFile(null);
+            return shannon;
+        });
+
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        try {
+            List<Path> outputs = new ArrayList<>();
+            Map<Path, Integer> outputCounts = new HashMap<>();
+            for (Path input : inputs) {
+                Path relative = inputRoot != null && input.startsWith(inputRoot) ? inputRoot.relativize(input)
+                        : input.getFileName();
+                Path output = outputDir.resolve(outputName(relative));
+                outputs.add(output);
+                outputCounts.merge(output.toAbsolutePath().normalize(), 1, Integer::sum);
+            }
+
+            List<Future<Result>> futures = new ArrayList<>();
+            for (int i = 0; i < inputs.size(); ++i) {
+                Path input = inputs.get(i);
+                Path output = outputs.get(i);
+                if (outputCounts.get(output.toAbsolutePath().normalize()) > 1) {
+                    Result result = new Result(input, output);
+                    result.error = new IOException("Output " + output + " is the output of another input too");
+                    futures.add(CompletableFuture.completedFuture(result));
+                }
+                else
+                    futures.add(pool.submit(() -> code(codecs.get(), input, output)));
+            }
+
+            List<Result> results = new ArrayList<>();
+            for (Future<Result> future : futures)
+                results.add(future.get());
+            return results;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private String outputName(Path relative) {
+        String name = relative.toString();
+        if (encoding)
+            return name + EXTENSION;
+        return name.endsWith(EXTENSION) ? name.substring(0, name.length() - EXTENSION.length()) : name + ".decoded";
+    }
+
+    private Result code(Shannon shannon, Path input, Path output) {
+        Result result = new Result(input, output);
+        shannon.setListener(new CodecListener() {
+            @Override
+            public void finished(CodecStats stats) {
+                result.stats = stats;
+            }
+        });
+        try {
+            if (output.getParent() != null)
+                Files.createDirectories(output.getParent());
+
+            if (encoding && Files.size(input) <= IN_MEMORY_SIZE)
+                Files.write(output, shannon.encode(Files.readAllBytes(input)));
+            else if (encoding)
+                shannon.encode(input.toString(), output.toString());
+            else
+                shannon.decode(input.toString(), output.toString());
+        }
+        catch (IOException | RuntimeException e) {
+            result.error = e;
+        }
+        return result;
+    }
+
+    /**
+     * Writes one tab separated line per result and a line with totals
+     */
+    public static void writeReport(List<Result> results, Writer writer) throws IOException {
+        writer.write("input\toutput\tbytes in\tbytes out\tratio\tmilis\terror" + System.lineSeparator());
+        long bytesIn = 0, bytesOut = 0, nanos = 0;
+        int failed = 0;
+        for (Result result : results) {
+            if (result.error != null) {
+                failed++;
+                writer.write(result.input + "\t" + result.output + "\t\t\t\t\t" + result.error + System.lineSeparator());
+                continue;
+            }
+            CodecStats stats = result.stats;
+            bytesIn += stats.getBytesIn();
+            bytesOut += stats.getBytesOut();
+            nanos += stats.getTotalNanos();
+            writer.write(String.format("%s\t%s\t%d\t%d\t%.4f\t%d\t%n", result.input, result.output,
+                    stats.getBytesIn(), stats.getBytesOut(), stats.getCompressionRatio(), stats.getTotalNanos() / 1000000));
+        }
+        writer.write(String.format("TOTAL %d files, %d failed\t\t%d\t%d\t\t%d\t%n", results.size(), failed,
+                bytesIn, bytesOut, nanos / 1000000));
+    }
+
+    public static final class Result {
+        private final Path input;
+        private final Path output;
+        private CodecStats stats;
+        private Exception error;
+
+        private Result(Path input, Path output) {
+            this.input = input;
+            this.output = output;
+        }
+
+        public Path getInput() {
+            return input;
+        }
+
+        public Path getOutput() {
+            return output;
+        }
+
+        /**
+         * @return statistics of coding, null if it failed
+         */
+        public CodecStats getStats() {
+            return stats;
+        }
+
+        /**
+         * @return exception which stopped coding, null if it succeeded
+         */
+        public Exception getError() {
+            return error;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package ShannonCoding;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @author Lukas
+ */
+
+/**
+ * Picks block length for data by estimating, on a sample, what every block length from 1 to 16 would cost.
+ *
+ * For every block length blocks of the sample are counted and coded. Encoded size is estimated as coded bits
+ * of the sample scaled to the whole input plus code lengths written to the header. Relative coding time is
+ * estimated from the number of blocks per byte, slowed down when the decoding table doesn't fit into CPU caches.
+ * Block length of the least weighted geometric mean of both is picked, see setSpeedWeight.
+ *
+ * Blocks missing from a sample only make an estimate more optimistic for long blocks, which is why sample
+ * should be as large as is affordable.
+ */
+public final class BlockLengthSelector {
+
+    static final int MIN_BLOCK_LENGTH = 1;
+    static final int MAX_BLOCK_LENGTH = 16;
+
+    //Block length of empty input, which any block length codes the same
+    private static final int DEFAULT_BLOCK_LENGTH = 8;
+
+    private static final long DEFAULT_SAMPLE_SIZE = 4 << 20;
+
+    //Decoding table sizes in bytes which fit into first and second level caches of common CPUs
+    private static final int L1_CACHE_SIZE = 32 << 10;
+    private static final int L2_CACHE_SIZE = 256 << 10;
+
+    private long sampleSize = DEFAULT_SAMPLE_SIZE;
+    private double speedWeight = 0;
+    private int maxCodeLength = DecodeTable.MAX_CODE_LENGTH;
+
+    /**
+     * @param sampleSize bytes sampled evenly over the input, 4 MB by default
+     */
+    public void setSampleSize(long sampleSize) {
+        if (sampleSize < 1)
+            throw new IllegalArgumentException("Sample size must be positive");
+        this.sampleSize = sampleSize;
+    }
+
+    /**
+     * @param speedWeight 0 picks the smallest output, 1 the fastest coding, values between weigh both
+     */
+    public void setSpeedWeight(double speedWeight) {
+        if (!(speedWeight >= 0 && speedWeight <= 1))
+            throw new IllegalArgumentException("Speed weight must be between 0 and 1");
+        this.speedWeight = speedWeight;
+    }
+
+    /**
+     * @param maxCodeLength longest codeWord the data will be coded with, block lengths it can't fit are skipped
+     */
+    public void setMaxCodeLength(int maxCodeLength) {
+        if (maxCodeLength < 1 || maxCodeLength > DecodeTable.MAX_CODE_LENGTH)
+            throw new IllegalArgumentException("CodeWord length limit must be between 1 and "
+                    + DecodeTable.MAX_CODE_LENGTH);
+        this.maxCodeLength = maxCodeLength;
+    }
+
+    /**
+     * @return block length for the whole file
+     */
+    public int select(String file) throws IOException {
+        try (MappedInput input = new MappedInput(file)) {
+            return select(input, true);
+        }
+    }
+
+    /**
+     * @return block length for bytes between position and limit of data
+     */
+    public int select(ByteBuffer data) {
+        return best(estimate(data));
+    }
+
+    int select(MappedInput input, boolean parallel) {
+        return best(estimate(input, parallel));
+    }
+
+    /**
+     * @return estimate of every block length which can code the file
+     */
+    List<Estimate> estimate(MappedInput input, boolean parallel) {
+        List<Estimate> estimates = new ArrayList<>();
+        for (int blockLength = MIN_BLOCK_LENGTH; blockLength <= MAX_BLOCK_LENGTH; ++blockLength) {
+            long[] frequencies = FrequencyCounter.sample(input, sampleSize, blockLength, parallel);
+            Estimate estimate = estimate(frequencies, blockLength, input.size());
+            if (estimate != null)
+                estimates.add(estimate);
+        }
+        return estimates;
+    }
+
+    List<Estimate> estimate(ByteBuffer data) {
+        List<Estimate> estimates = new ArrayList<>();
+        for (int blockLength = MIN_BLOCK_LENGTH; blockLength <= MAX_BLOCK_LENGTH; ++blockLength) {
+            long[] frequencies = FrequencyCounter.sample(data, sampleSize, blockLength);
+            Estimate estimate = estimate(frequencies, blockLength, data.remaining());
+            if (estimate != null)
+                estimates.add(estimate);
+        }
+        return estimates;
+    }
+
+    /**
+     * @param frequencies frequencies of blocks of the sample
+     * @param size bytes of the whole input
+     * @return estimate or null if input is not longer than one block or blocks of the sample don't fit
+     *          into codeWords of maxCodeLength
+     */
+    private Estimate estimate(long[] frequencies, int blockLength, long size) {
+        if (size * 8 <= blockLength)
+            return null;
+        int dictionarySize = 0;
+        for (long frequency : frequencies) {
+            if (frequency != 0)
+                dictionarySize++;
+        }
+        if (dictionarySize == 0 || dictionarySize > 1L << maxCodeLength)
+            return null;
+
+        CodeBook codeBook = CodeBook.of(frequencies, blockLength, maxCodeLength);
+        double sampleBits = (double) codeBook.getBlockCount() * blockLength;
+        double dataBits = codeBook.averageCodeLength() * codeBook.getBlockCount() * (size * 8 / sampleBits);
+
+        long headerBits;
+        ByteBuffer header = ByteBuffer.allocate((int) FrameFormat.maxHeaderLength(dictionarySize, blockLength));
+        try (BufferedBitWriter bw = new BufferedBitWriter(header)) {
+            codeBook.writeCodeLengths(bw);
+            headerBits = bw.getBitPosition();
+        }
+        catch (IOException e) {
+            //maxHeaderLength always fits
+            throw new IllegalStateException(e);
+        }
+
+        long tableBytes = codeBook.decodeTable().entryCount() * 4L;
+        double cachePenalty = tableBytes <= L1_CACHE_SIZE ? 1 : tableBytes <= L2_CACHE_SIZE ? 1.5 : 3;
+        double codingTime = 8.0 / blockLength * cachePenalty;
+
+        return new Estimate(blockLength, (long) Math.ceil((dataBits + headerBits) / 8), tableBytes, codingTime);
+    }
+
+    private int best(List<Estimate> estimates) {
+        Estimate best = null;
+        double bestScore = Double.POSITIVE_INFINITY;
+        for (Estimate estimate : estimates) {
+            //Weighted geometric mean, so neither size nor time dominates by its magnitude
+            double score = (1 - speedWeight) * Math.log(Math.max(1, estimate.encodedBytes))
+                    + speedWeight * Math.log(estimate.codingTime);
+            if (score < bestScore) {
+                bestScore = score;
+                best = estimate;
+            }
+        }
+        //Even block length 1 fits the shortest codeWords, so only empty input has no estimate
+        return best == null ? DEFAULT_BLOCK_LENGTH : best.blockLength;
+    }
+
+    /**
+     * Estimated cost of coding the input with one block length
+     */
+    static final class Estimate {
+        final int blockLength;
+        final long encodedBytes;
+        //Bytes of the decoding table
+        final long tableBytes;
+        //Time relative to coding one block per byte with a table which fits into first level cache
+        final double codingTime;
+
+        Estimate(int blockLength, long encodedBytes, long tableBytes, double codingTime) {
+            this.blockLength = blockLength;
+            this.encodedBytes = encodedBytes;
+            this.tableBytes = tableBytes;
+            this.codingTime = codingTime;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%2d bits: %d bytes, table %d bytes, time %.2f", blockLength, encodedBytes,
+                    tableBytes, codingTime);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package ShannonCoding;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * @author Lukas
+ */
+
+/**
+ * Reads bits from a stream, most significant bit of every byte first.
+ *
+ * Bits are kept in a 64-bit buffer whose most significant bit is the next unread bit. The buffer is refilled
+ * from a byte block, which in turn is refilled from the stream in bulk or is a segment of a memory mapped file,
+ * so up to 57 bits can be read per call.
+ * Past the end of stream peekBits returns zero bits, while readBits and skipBits throw EOFException.
+ */
+public class BufferedBitReader implements Closeable {
+
+    //Most bits which can be read at once
+    public static final int MAX_BITS = 57;
+
+    private final ByteBlockSource source;
+
+    //Current block of bytes, read between position and limit
+    private ByteBuffer block = ByteBuffer.allocate(0);
+    private int position = 0;
+    private int limit = 0;
+    //Number of bytes before index 0 of current block
+    private long blockOffset = 0;
+
+    //Left aligned bit buffer, bitCount bits from the top are valid
+    private long bitBuffer = 0;
+    private int bitCount = 0;
+    //Zero bits appended to the bottom of valid bits after end of stream
+    private int paddingBits = 0;
+
+    public BufferedBitReader(InputStream stream) {
+        this(new StreamSource(stream));
+    }
+
+    public BufferedBitReader(String filename) throws FileNotFoundException {
+        this(new FileInputStream(filename));
+    }
+
+    /**
+     * Reads bytes between buffer's position and limit, buffer itself is not modified
+     */
+    public BufferedBitReader(ByteBuffer buffer) {
+        this(ByteBlockSource.of(buffer.duplicate()));
+    }
+
+    BufferedBitReader(ByteBlockSource source) {
+        this.source = source;
+    }
+
+    /**
+     * @return number of bits read or skipped so far
+     */
+    public long getBitPosition() {
+        return (blockOffset + position) * 8 + paddingBits - bitCount;
+    }
+
+    /**
+     * @param num number of bits, from 0 to MAX_BITS
+     * @return next num bits without consuming them, bits past the end of stream are 0
+     */
+    public long peekBits(int num) throws IOException {
+        if (bitCount < num)
+            refill();
+        return num == 0 ? 0 : bitBuffer >>> (64 - num);
+    }
+
+    /**
+     * Consumes num bits, usually ones already seen by peekBits
+     * @throws EOFException if stream ends before num bits
+     */
+    public void skipBits(int num) throws IOException {
+        if (bitCount < num)
+            refill();
+        if (num > bitCount - paddingBits)
+            throw new EOFException();
+        bitBuffer <<= num;
+        bitCount -= num;
+    }
+
+    /**
+     * @param num number of bits, from 0 to MAX_BITS
+     * @return next num bits as a right aligned value
+     * @throws EOFException if stream ends before num bits
+     */
+    public long readBits(int num) throws IOException {
+        if ((num < 0) || (num > MAX_BITS))
+            throw new IllegalArgumentException("Number of bits is out of range");
+        if (num == 0)
+            return 0;
+
+        if (bitCount < num)
+            refill();
+        if (num > bitCount - paddingBits)
+            throw new EOFException();
+
+        long bits = bitBuffer >>> (64 - num);
+        bitBuffer <<= num;
+        bitCount -= num;
+        return bits;
+    }
+
+    public int readBit() throws IOException {
+        return (int) readBits(1);
+    }
+
+    /**
+     * Reads bytes as they are, reader must be byte aligned
+     * @throws EOFException if stream ends before length bytes
+     */
+    public void readBytes(byte[] bytes, int offset, int length) throws IOException {
+        if ((getBitPosition() & 7) != 0)
+            throw new IllegalStateException("Reader is not byte aligned");
+
+        //Bytes already loaded into bit buffer come first
+        while (length > 0 && bitCount - paddingBits >= 8) {
+            bytes[offset++] = (byte) readBits(8);
+            length--;
+        }
+        while (length > 0) {
+            if (position == limit && !fillBlock())
+                throw new EOFException();
+            int count = Math.min(length, limit - position);
+            ByteBuffer source = block.duplicate();
+            source.position(position);
+            source.get(bytes, offset, count);
+            position += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Skips bits up to the byte boundary
+     */
+    public void alignToByte() throws IOException {
+        skipBits((int) (-getBitPosition() & 7));
+    }
+
+    /**
+     * @return false if end of stream is reached
+     */
+    public boolean hasMoreBits() throws IOException {
+        if (bitCount == 0)
+            refill();
+        return bitCount > paddingBits;
+    }
+
+    /**
+     * Fills bit buffer to at least MAX_BITS bits
+     */
+    private void refill() throws IOException {
+        if (limit - position >= 8) {
+            //Loading whole 8 bytes, bytes which don't fit are loaded again by the next refill
+            bitBuffer |= block.getLong(position) >>> bitCount;
+            int bytes = (64 - bitCount) >>> 3;
+            position += bytes;
+            bitCount += bytes << 3;
+            return;
+        }
+
+        while (bitCount <= 56) {
+            if (position == limit && !fillBlock()) {
+                paddingBits += 8;
+                bitCount += 8;
+                continue;
+            }
+            bitBuffer |= (long) (block.get(position++) & 0xFF) << (56 - bitCount);
+            bitCount += 8;
+        }
+    }
+
+    /**
+     * Replaces fully read block with the next one from source
+     * @return false if there are no more bytes
+     */
+    private boolean fillBlock() throws IOException {
+        ByteBuffer next;
+        do {
+            next = source.next();
+            if (next == null)
+                return false;
+        } while (!next.hasRemaining());
+
+        blockOffset += limit - next.position();
+        block = next;
+        position = next.position();
+        limit = next.limit();
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+    /**
+     * Reads stream into one reused byte array
+     */
+    private static final class StreamSource implements ByteBlockSource {
+
+        private static final int BLOCK_SIZE = 1 << 16;
+
+        private final InputStream stream;
+        private final ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+
+        StreamSource(InputStream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public ByteBuffer next() throws IOException {
+            int length = 0;
+            //Filling whole block, so refills can use the fast path
+            while (length < block.capacity()) {
+                int read = stream.read(block.array(), length, block.capacity() - length);
+                if (read < 0)
+                    break;
+                length += read;
+                if (read == 0 || stream.available() == 0)
+                    break;
+            }
+            if (length == 0)
+                return null;
+            block.clear();
+            block.limit(length);
+            return block;
+        }
+
+        @Override
+        public void close() throws IOException {
+            stream.close();
+        }
+    }
+}
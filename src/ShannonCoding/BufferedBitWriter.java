@@ -0,0 +1,180 @@
+package ShannonCoding;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * @author Lukas
+ */
+
+/**
+ * Writes bits to a stream, most significant bit of every byte first.
+ *
+ * Bits are collected in a 64-bit buffer which is drained 8 bytes at a time into a byte block,
+ * and the block is written to the stream in bulk, so up to 57 bits can be written per call.
+ * Writer can also fill a given ByteBuffer directly instead of a stream.
+ */
+public class BufferedBitWriter implements Closeable, Flushable {
+
+    //Most bits which can be written at once
+    public static final int MAX_BITS = 57;
+
+    private static final int BLOCK_SIZE = 1 << 16;
+
+    //null when writing directly into block
+    private final OutputStream stream;
+
+    private final ByteBuffer block;
+    private final int blockStart;
+    private int position;
+    //Number of bytes written to stream before blockStart
+    private long writtenBytes = 0;
+
+    //Left aligned bit buffer, bitCount bits from the top are valid
+    private long bitBuffer = 0;
+    private int bitCount = 0;
+
+    public BufferedBitWriter(OutputStream stream) {
+        this(stream, ByteBuffer.allocate(BLOCK_SIZE));
+    }
+
+    public BufferedBitWriter(String filename) throws FileNotFoundException {
+        this(new FileOutputStream(filename));
+    }
+
+    /**
+     * Writes bits to target starting at its position, target's position is moved on flush
+     */
+    BufferedBitWriter(ByteBuffer target) {
+        this(null, target);
+    }
+
+    private BufferedBitWriter(OutputStream stream, ByteBuffer block) {
+        this.stream = stream;
+        this.block = block;
+        this.blockStart = block.position();
+        this.position = blockStart;
+    }
+
+    /**
+     * @return number of bits written so far
+     */
+    public long getBitPosition() {
+        return (writtenBytes + position - blockStart) * 8 + bitCount;
+    }
+
+    /**
+     * @param bits value, only lowest num bits are written
+     * @param num number of bits, from 0 to MAX_BITS
+     */
+    public void writeBits(long bits, int num) throws IOException {
+        if ((num < 0) || (num > MAX_BITS))
+            throw new IllegalArgumentException("Number of bits is out of range");
+        if (num == 0)
+            return;
+
+        if (bitCount + num > 64)
+            drain();
+        //Shifting left drops bits above num
+        bitBuffer |= (bits << (64 - num)) >>> bitCount;
+        bitCount += num;
+    }
+
+    public void writeBit(int bit) throws IOException {
+        if (bit != 0 && bit != 1)
+            throw new IllegalArgumentException("A bit must be 0 or 1");
+        writeBits(bit, 1);
+    }
+
+    /**
+     * Writes bytes as they are, writer must be byte aligned
+     */
+    public void writeBytes(byte[] bytes, int offset, int length) throws IOException {
+        if ((bitCount & 7) != 0)
+            throw new IllegalStateException("Writer is not byte aligned");
+        drain();
+
+        if (stream != null && length >= block.capacity()) {
+            writeBlock();
+            stream.write(bytes, offset, length);
+            writtenBytes += length;
+            return;
+        }
+        while (length > 0) {
+            if (position == block.limit())
+                makeRoom();
+            int count = Math.min(length, block.limit() - position);
+            ByteBuffer target = block.duplicate();
+            target.position(position);
+            target.put(bytes, offset, count);
+            position += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Pads current byte with zeroes
+     */
+    public void alignToByte() {
+        bitCount = (bitCount + 7) & ~7;
+    }
+
+    /**
+     * Moves whole bytes of bit buffer to byte block
+     */
+    private void drain() throws IOException {
+        int bytes = bitCount >>> 3;
+        if (block.limit() - position >= 8) {
+            block.putLong(position, bitBuffer);
+            position += bytes;
+        }
+        else {
+            for (int i = 0; i < bytes; ++i) {
+                if (position == block.limit())
+                    makeRoom();
+                block.put(position++, (byte) (bitBuffer >>> (56 - 8 * i)));
+            }
+        }
+        bitBuffer = bytes == 8 ? 0 : bitBuffer << (bytes << 3);
+        bitCount &= 7;
+    }
+
+    private void makeRoom() throws IOException {
+        if (stream == null)
+            throw new IOException("Output buffer is full");
+        writeBlock();
+    }
+
+    private void writeBlock() throws IOException {
+        stream.write(block.array(), blockStart, position - blockStart);
+        writtenBytes += position - blockStart;
+        position = blockStart;
+    }
+
+    /**
+     * Pads last byte with zeroes and writes everything to the stream
+     */
+    @Override
+    public void flush() throws IOException {
+        alignToByte();
+        drain();
+        if (stream != null) {
+            writeBlock();
+            stream.flush();
+        }
+        else
+            block.position(position);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        }
+        finally {
+            if (stream != null)
+                stream.close();
+        }
+    }
+}
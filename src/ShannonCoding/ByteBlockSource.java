@@ -0,0 +1,40 @@
+package ShannonCoding;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * @author Lukas
+ */
+
+/**
+ * Supplies bytes to BufferedBitReader block after block
+ */
+interface ByteBlockSource extends Closeable {
+
+    /**
+     * @return next block, bytes between its position and limit are read; null at the end of input.
+     *          Previously returned block is not used anymore once this is called
+     */
+    ByteBuffer next() throws IOException;
+
+    /**
+     * @return source of bytes between buffer's position and limit
+     */
+    static ByteBlockSource of(ByteBuffer buffer) {
+        return new ByteBlockSource() {
+            private ByteBuffer remaining = buffer;
+
+            @Override
+            public ByteBuffer next() {
+                ByteBuffer next = remaining;
+                remaining = null;
+                return next;
+            }
+
+            @Override
+            public void close() { }
+        };
+    }
+}
@@ -0,0 +1,554 @@
+package ShannonCoding;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * @author Lukas
+ */
+
+/**
+ * Shannon code of blocks, block of probability p gets codeWord of ceil(-log2 p) bits.
+ *
+ * CodeWords are canonical: blocks sorted by codeWord length and then by value get consecutive codeWords, so
+ * code lengths alone are enough to rebuild the code. Shannon code lengths always satisfy Kraft inequality,
+ * so canonical codeWords of them exist and code the same number of bits as binary fractions of
+ * p_0 + ... + p_(i-1) would.
+ *
+ * Length of codeWords can be limited, codeWords longer than the limit are shortened to it and the least frequent
+ * blocks get longer codeWords to make room for them, see limitLengths.
+ */
+final class CodeBook {
+
+    //Bytes encodeBytes and encodeWords read from the reader at once
+    private static final int BYTES_CHUNK_SIZE = 64 << 10;
+
+    private final int blockLength;
+
+    //Number of blocks all frequencies sum up to, denominator of every probability
+    private final long blockCount;
+
+    //Blocks sorted by descending frequency and their frequencies
+    private final int[] sortedBlocks;
+    private final long[] sortedFrequencies;
+
+    //CodeWords of blocks indexed by block value, right aligned
+    private final int[] codeWords;
+    //CodeWord lengths of blocks indexed by block value
+    private final byte[] codeWordLengths;
+
+    /**
+     * @param frequencies frequencies of blocks indexed by block value
+     * @param maxCodeLength longest codeWord length in bits
+     */
+    private CodeBook(long[] frequencies, int blockLength, int maxCodeLength) {
+        this.blockLength = blockLength;
+        this.codeWords = new int[1 << blockLength];
+        this.codeWordLengths = new byte[1 << blockLength];
+
+        //Frequency and block packed into one long, so blocks are sorted by a primitive sort
+        long maxFrequency = Long.MAX_VALUE >>> blockLength;
+        long[] packed = new long[frequencies.length];
+        int size = 0;
+        long blockCount = 0;
+        for (int block = 0; block < frequencies.length; ++block) {
+            long frequency = frequencies[block];
+            if (frequency == 0)
+                continue;
+            if (frequency < 0 || frequency > maxFrequency || blockCount + frequency < 0)
+                throw new IllegalArgumentException("Frequency of block " + block + " is out of range");
+            //Complement of block makes equal frequencies come in ascending block order once reversed
+            packed[size++] = (frequency << blockLength) | (frequencies.length - 1 - block);
+            blockCount += frequency;
+        }
+        Arrays.sort(packed, 0, size);
+
+        this.blockCount = blockCount;
+        this.sortedBlocks = new int[size];
+        this.sortedFrequencies = new long[size];
+        for (int i = 0; i < size; ++i) {
+            long entry = packed[size - 1 - i];
+            sortedBlocks[i] = frequencies.length - 1 - (int) (entry & (frequencies.length - 1));
+            sortedFrequencies[i] = entry >>> blockLength;
+        }
+
+        if (size > 1L << maxCodeLength)
+            throw new IllegalArgumentException(size + " blocks don't fit into codeWords of at most "
+                    + maxCodeLength + " bits");
+
+        int[] sortedLengths = new int[size];
+        for (int i = 0; i < size; ++i)
+            sortedLengths[i] = codeWordLength(sortedFrequencies[i], blockCount);
+        limitLengths(sortedLengths, maxCodeLength);
+
+        int[] lengths = new int[frequencies.length];
+        for (int i = 0; i < size; ++i) {
+            lengths[sortedBlocks[i]] = sortedLengths[i];
+            codeWordLengths[sortedBlocks[i]] = (byte) sortedLengths[i];
+        }
+        canonicalCodeWords(lengths, codeWords);
+    }
+
+    /**
+     * Builds codeWords straight from block frequencies
+     * @param frequencies frequencies of blocks indexed by block value, array of size 2^blockLength
+     */
+    static CodeBook of(long[] frequencies, int blockLength) {
+        return of(frequencies, blockLength, DecodeTable.MAX_CODE_LENGTH);
+    }
+
+    /**
+     * @param maxCodeLength longest codeWord length in bits, at most DecodeTable.MAX_CODE_LENGTH
+     */
+    static CodeBook of(long[] frequencies, int blockLength, int maxCodeLength) {
+        if (frequencies.length != 1 << blockLength)
+            throw new IllegalArgumentException("Frequencies don't match block length " + blockLength);
+        if (maxCodeLength < 1 || maxCodeLength > DecodeTable.MAX_CODE_LENGTH)
+            throw new IllegalArgumentException("CodeWord length limit must be between 1 and "
+                    + DecodeTable.MAX_CODE_LENGTH);
+        return new CodeBook(frequencies, blockLength, maxCodeLength);
+    }
+
+    /**
+     * @return ceil(log2(total / frequency)), at least 1 so even the only block can be counted while decoding
+     */
+    static int codeWordLength(long frequency, long total) {
+        //frequency shifted by length has its highest bit at the same place as total
+        int length = Long.numberOfLeadingZeros(frequency) - Long.numberOfLeadingZeros(total);
+        if (frequency << length < total)
+            length++;
+        return Math.max(1, length);
+    }
+
+    /**
+     * Limits codeWord lengths to maxLength, lengths which already fit are left as they are.
+     *
+     * Lengths over the limit are cut to it, which breaks Kraft inequality by some code space. Least frequent
+     * blocks are lengthened by one bit at a time until that space is freed, as every extra bit costs them least.
+     * If the last step frees more space than needed, spare space shortens codeWords of the most frequent blocks.
+     * @param lengths codeWord lengths of blocks sorted by descending frequency, at most 2^maxLength of them
+     */
+    static void limitLengths(int[] lengths, int maxLength) {
+        //Code space in units of 2^-maxLength, whole space is 2^maxLength units
+        long overflow = -(1L << maxLength);
+        boolean limited = false;
+        for (int i = 0; i < lengths.length; ++i) {
+            if (lengths[i] > maxLength) {
+                lengths[i] = maxLength;
+                limited = true;
+            }
+            overflow += 1L << (maxLength - lengths[i]);
+        }
+        if (!limited)
+            return;
+
+        //Lengthening codeWord of length l frees 2^(maxLength - l - 1) units
+        while (overflow > 0) {
+            boolean lengthened = false;
+            for (int i = lengths.length - 1; i >= 0 && overflow > 0; --i) {
+                while (lengths[i] < maxLength && 1L << (maxLength - lengths[i] - 1) <= overflow) {
+                    overflow -= 1L << (maxLength - lengths[i] - 1);
+                    lengths[i]++;
+                    lengthened = true;
+                }
+            }
+            if (lengthened)
+                continue;
+
+            //Every codeWord frees more than needed, the longest one which can grow frees least
+            int longest = -1;
+            for (int i = lengths.length - 1; i >= 0; --i) {
+                if (lengths[i] < maxLength && (longest < 0 || lengths[i] > lengths[longest]))
+                    longest = i;
+            }
+            overflow -= 1L << (maxLength - lengths[longest] - 1);
+            lengths[longest]++;
+        }
+
+        for (int i = 0; i < lengths.length; ++i) {
+            while (lengths[i] > 1 && 1L << (maxLength - lengths[i]) <= -overflow) {
+                overflow += 1L << (maxLength - lengths[i]);
+                lengths[i]--;
+            }
+        }
+    }
+
+    /**
+     * Assigns canonical codeWords: shorter codeWords come first, codeWords of same length go by block value
+     * @param lengths codeWord lengths indexed by block value, 0 if block has no codeWord
+     * @param codeWords array codeWords are written to, right aligned
+     * @return false if lengths don't satisfy Kraft inequality, so there is no prefix code of them
+     */
+    static boolean canonicalCodeWords(int[] lengths, int[] codeWords) {
+        long[] lengthCount = new long[DecodeTable.MAX_CODE_LENGTH + 1];
+        for (int length : lengths)
+            lengthCount[length]++;
+        //Blocks without codeWord
+        lengthCount[0] = 0;
+
+        //First codeWord of every length
+        long[] next = new long[DecodeTable.MAX_CODE_LENGTH + 1];
+        long code = 0;
+        for (int length = 1; length <= DecodeTable.MAX_CODE_LENGTH; ++length) {
+            code = (code + lengthCount[length - 1]) << 1;
+            next[length] = code;
+            if (code + lengthCount[length] > 1L << length)
+                return false;
+        }
+
+        for (int block = 0; block < lengths.length; ++block) {
+            if (lengths[block] != 0)
+                codeWords[block] = (int) next[lengths[block]]++;
+        }
+        return true;
+    }
+
+    int getBlockLength() {
+        return blockLength;
+    }
+
+    int size() {
+        return sortedBlocks.length;
+    }
+
+    /**
+     * @return frequencies of blocks indexed by block value, same as this code book was built of
+     */
+    long[] frequencies() {
+        long[] frequencies = new long[1 << blockLength];
+        for (int i = 0; i < sortedBlocks.length; ++i)
+            frequencies[sortedBlocks[i]] = sortedFrequencies[i];
+        return frequencies;
+    }
+
+    long getBlockCount() {
+        return blockCount;
+    }
+
+    /**
+     * @return entropy of blocks in bits per block
+     */
+    double entropy() {
+        double entropy = 0;
+        for (long frequency : sortedFrequencies) {
+            double probability = (double) frequency / blockCount;
+            entropy -= probability * Math.log(probability);
+        }
+        return entropy / Math.log(2);
+    }
+
+    /**
+     * @return average codeWord length in bits per block
+     */
+    double averageCodeLength() {
+        double bits = 0;
+        for (int i = 0; i < sortedBlocks.length; ++i)
+            bits += (double) sortedFrequencies[i] * codeWordLengths[sortedBlocks[i]];
+        return blockCount == 0 ? 0 : bits / blockCount;
+    }
+
+    /**
+     * Codes bitCount bits from br block by block, last block can be shorter than block length
+     * @throws IllegalArgumentException if a block has no codeWord
+     */
+    void encode(BufferedBitReader br, long bitCount, BufferedBitWriter bw) throws IOException {
+        int[] codeWords = this.codeWords;
+        byte[] codeWordLengths = this.codeWordLengths;
+
+        if ((blockLength == 8 || blockLength == 16) && (br.getBitPosition() & 7) == 0)
+            bitCount = encodeBytes(br, bitCount, bw);
+        else if ((br.getBitPosition() & 7) == 0)
+            bitCount = encodeWords(br, bitCount, bw);
+
+        while(bitCount >= blockLength){
+            int block = (int) br.readBits(blockLength);
+            if (codeWordLengths[block] == 0)
+                throw missingBlock(block);
+            bw.writeBits(codeWords[block], codeWordLengths[block]);
+            bitCount -= blockLength;
+        }
+
+        if(bitCount > 0){
+            int block = (int) br.readBits((int) bitCount);
+            if (codeWordLengths[block] == 0)
+                throw missingBlock(block);
+            bw.writeBits(codeWords[block], codeWordLengths[block]);
+        }
+    }
+
+    /**
+     * Codes whole blocks of whole bytes read from br in bulk, br has to be byte aligned
+     * @return number of bits left, less than a block
+     */
+    private long encodeBytes(BufferedBitReader br, long bitCount, BufferedBitWriter bw) throws IOException {
+        int[] codeWords = this.codeWords;
+        byte[] codeWordLengths = this.codeWordLengths;
+        int blockBytes = blockLength / 8;
+
+        byte[] chunk = new byte[(int) Math.min(BYTES_CHUNK_SIZE, bitCount / 8)];
+        //Right aligned codeWords not yet written, bits above count are dropped by writeBits
+        long bits = 0;
+        int count = 0;
+        while (bitCount >= blockLength) {
+            int length = (int) Math.min(chunk.length, bitCount / blockLength * blockBytes);
+            br.readBytes(chunk, 0, length);
+            bitCount -= length * 8L;
+
+            for (int i = 0; i < length; i += blockBytes) {
+                int block = blockBytes == 1 ? chunk[i] & 0xFF : (chunk[i] & 0xFF) << 8 | chunk[i + 1] & 0xFF;
+                int codeWordLength = codeWordLengths[block];
+                if (codeWordLength == 0)
+                    throw missingBlock(block);
+                //CodeWords are at most 32 bits, so count stays below 64. Those of 32 bits are negative ints, so
+                //they are zero extended
+                bits = (bits << codeWordLength) | codeWords[block] & 0xFFFFFFFFL;
+                count += codeWordLength;
+                if (count >= 32) {
+                    count -= 32;
+                    bw.writeBits(bits >>> count, 32);
+                }
+            }
+        }
+        bw.writeBits(bits, count);
+        return bitCount;
+    }
+
+    /**
+     * Codes whole groups of blocks which end at a byte boundary, read from br in bulk, br has to be byte aligned.
+     * Blocks are cut from 64 bit words, several from every word loaded
+     * @return number of bits left, less than a group of blocks
+     */
+    private long encodeWords(BufferedBitReader br, long bitCount, BufferedBitWriter bw) throws IOException {
+        int[] codeWords = this.codeWords;
+        byte[] codeWordLengths = this.codeWordLengths;
+        int blockLength = this.blockLength;
+        int alignment = FrequencyCounter.alignment(blockLength);
+        int perWord = FrequencyCounter.blocksPerWord(blockLength);
+        int shift = 64 - blockLength;
+
+        //Padded by a word, so words are loaded past the last byte read as well
+        byte[] chunk = new byte[(int) Math.min(BYTES_CHUNK_SIZE - BYTES_CHUNK_SIZE % alignment, bitCount / 8) + 8];
+        ByteBuffer words = ByteBuffer.wrap(chunk);
+        //Right aligned codeWords not yet written, bits above count are dropped by writeBits
+        long bits = 0;
+        int count = 0;
+        while (bitCount >= alignment * 8L) {
+            int length = (int) Math.min(chunk.length - 8, bitCount / 8 / alignment * alignment);
+            br.readBytes(chunk, 0, length);
+            bitCount -= length * 8L;
+
+            int blocks = length * 8 / blockLength;
+            long position = 0;
+            for (int i = 0; i < blocks; i += perWord) {
+                long word = words.getLong((int) (position >>> 3)) << (position & 7);
+                position += (long) perWord * blockLength;
+                //Last word can hold fewer blocks, bits past them are of the padding
+                for (int j = Math.min(perWord, blocks - i); j > 0; --j) {
+                    int block = (int) (word >>> shift);
+                    word <<= blockLength;
+                    int codeWordLength = codeWordLengths[block];
+                    if (codeWordLength == 0)
+                        throw missingBlock(block);
+                    //Zero extended like in encodeBytes
+                    bits = (bits << codeWordLength) | codeWords[block] & 0xFFFFFFFFL;
+                    count += codeWordLength;
+                    if (count >= 32) {
+                        count -= 32;
+                        bw.writeBits(bits >>> count, 32);
+                    }
+                }
+            }
+        }
+        bw.writeBits(bits, count);
+        return bitCount;
+    }
+
+    private static IllegalArgumentException missingBlock(int block) {
+        return new IllegalArgumentException("Block " + block + " is not in the code book");
+    }
+
+    /**
+     * @return decoding table of these codeWords
+     */
+    DecodeTable decodeTable() {
+        int[] lengths = new int[sortedBlocks.length];
+        int[] codes = new int[sortedBlocks.length];
+        for (int i = 0; i < sortedBlocks.length; ++i) {
+            lengths[i] = codeWordLengths[sortedBlocks[i]];
+            codes[i] = codeWords[sortedBlocks[i]];
+        }
+        return new DecodeTable(sortedBlocks, codes, lengths, sortedBlocks.length);
+    }
+
+    /**
+     * @return longest codeWord length in bits
+     */
+    int maxCodeWordLength() {
+        int max = 0;
+        for (byte length : codeWordLengths)
+            max = Math.max(max, length);
+        return max;
+    }
+
+    /**
+     * Writes codeWord lengths of all 2^blockLength blocks in order of block value, length 0 for blocks without
+     * codeWord. Lengths are written as tokens:
+     *      0, gamma(n): next n blocks have the same length as the previous one, 0 before the first block
+     *      1, gamma(z): next block's length differs from the previous one by d, z = 2d - 1 if d > 0, -2d otherwise
+     * gamma(n) is Elias gamma code of n: floor(log2 n) zeroes followed by n in binary
+     */
+    void writeCodeLengths(BufferedBitWriter bw) throws IOException {
+        int previous = 0;
+        int block = 0;
+        while (block < codeWordLengths.length) {
+            int length = codeWordLengths[block];
+            if (length == previous) {
+                int run = 1;
+                while (block + run < codeWordLengths.length && codeWordLengths[block + run] == previous)
+                    run++;
+                bw.writeBits(0, 1);
+                writeGamma(bw, run);
+                block += run;
+            }
+            else {
+                int delta = length - previous;
+                bw.writeBits(1, 1);
+                writeGamma(bw, delta > 0 ? 2 * delta - 1 : -2 * delta);
+                previous = length;
+                block++;
+            }
+        }
+    }
+
+    /**
+     * @return most bits writeCodeLengths can take for dictionarySize blocks of blockLength
+     */
+    static long maxCodeLengthsBits(long dictionarySize, int blockLength) {
+        //Every block with codeWord starts at most one token and ends at most one run.
+        //Runs are at most 2^blockLength and length differences at most 2 * MAX_CODE_LENGTH
+        int maxDifferenceBits = 63 - Long.numberOfLeadingZeros(2 * DecodeTable.MAX_CODE_LENGTH);
+        int maxGammaBits = 2 * Math.max(blockLength, maxDifferenceBits) + 1;
+        return (2 * dictionarySize + 1) * (1 + maxGammaBits);
+    }
+
+    /**
+     * Reads lengths written by writeCodeLengths and builds decoding table of their canonical codeWords
+     */
+    static DecodeTable readCodeLengths(BufferedBitReader br, int blockLength) throws IOException {
+        int[] lengths = new int[1 << blockLength];
+        int previous = 0;
+        int block = 0;
+        int size = 0;
+        while (block < lengths.length) {
+            if (br.readBits(1) == 0) {
+                long run = readGamma(br);
+                if (run > lengths.length - block)
+                    throw new IOException("Code lengths are corrupted");
+                if (previous != 0) {
+                    Arrays.fill(lengths, block, block + (int) run, previous);
+                    size += run;
+                }
+                block += run;
+            }
+            else {
+                long z = readGamma(br);
+                previous += (z & 1) == 1 ? (int) ((z + 1) / 2) : (int) -(z / 2);
+                if (previous < 0 || previous > DecodeTable.MAX_CODE_LENGTH)
+                    throw new IOException("CodeWord of length " + previous + " is not supported");
+                lengths[block++] = previous;
+                if (previous != 0)
+                    size++;
+            }
+        }
+        if (size == 0)
+            throw new IOException("Code lengths are empty");
+
+        int[] codeWords = new int[lengths.length];
+        if (!canonicalCodeWords(lengths, codeWords))
+            throw new IOException("Code lengths don't form a prefix code");
+
+        int[] symbols = new int[size];
+        int[] codes = new int[size];
+        int[] codeLengths = new int[size];
+        size = 0;
+        for (block = 0; block < lengths.length; ++block) {
+            if (lengths[block] == 0)
+                continue;
+            symbols[size] = block;
+            codes[size] = codeWords[block];
+            codeLengths[size++] = lengths[block];
+        }
+        return new DecodeTable(symbols, codes, codeLengths, size);
+    }
+
+    private static void writeGamma(BufferedBitWriter bw, long n) throws IOException {
+        int bits = 64 - Long.numberOfLeadingZeros(n);
+        bw.writeBits(0, bits - 1);
+        bw.writeBits(n, bits);
+    }
+
+    private static long readGamma(BufferedBitReader br) throws IOException {
+        int zeroes = 0;
+        while (br.readBits(1) == 0) {
+            if (++zeroes > 32)
+                throw new IOException("Code lengths are corrupted");
+        }
+        return (1L << zeroes) | br.readBits(zeroes);
+    }
+
+    /**
+     * Reads 'dictionary' of format version 1 and builds decoding table of it, every block of it is:
+     *      [bit block length bits]: integer value of bit block
+     *      [8 bits]: length x of bit block's codeWord
+     *      [x bits] bit block's codeword
+     */
+    static DecodeTable readDictionary(BufferedBitReader br, int blockLength, int dictionarySize) throws IOException {
+        if (dictionarySize < 1 || dictionarySize > 1 << blockLength)
+            throw new IOException("Dictionary size " + dictionarySize + " is out of range");
+
+        int[] symbols = new int[dictionarySize];
+        int[] codeWords = new int[dictionarySize];
+        int[] codeWordLengths = new int[dictionarySize];
+
+        for(int i = 0; i < dictionarySize; ++i){
+            symbols[i] = (int) br.readBits(blockLength);
+            codeWordLengths[i] = (int) br.readBits(8);
+            if(codeWordLengths[i] < 1 || codeWordLengths[i] > DecodeTable.MAX_CODE_LENGTH)
+                throw new IOException("CodeWord of length " + codeWordLengths[i] + " is not supported");
+            codeWords[i] = (int) br.readBits(codeWordLengths[i]);
+        }
+        try {
+            return new DecodeTable(symbols, codeWords, codeWordLengths, dictionarySize);
+        }
+        catch (IllegalArgumentException e) {
+            throw new IOException("Dictionary is corrupted", e);
+        }
+    }
+
+    /**
+     * Writes integer representation of every block, it's probability, it's code's length,
+     * probability sum up to that block and block's codeword
+     */
+    void writeCodeData(Writer writer) throws IOException {
+        long currSum = 0;
+        for (int i = 0; i < sortedBlocks.length; ++i) {
+            int block = sortedBlocks[i];
+            writer.write(String.format("%-10d %s %5d %15s %15s", block, sortedFrequencies[i] + "/" + blockCount,
+                    codeWordLengths[block], currSum + "/" + blockCount,
+                    codeWordToString(codeWords[block], codeWordLengths[block])) + System.lineSeparator());
+            currSum += sortedFrequencies[i];
+        }
+    }
+
+    /**
+     * @return codeWord as a string of 0 and 1
+     */
+    private static String codeWordToString(int codeWord, int length){
+        StringBuilder sb = new StringBuilder(length);
+        for(int i = length - 1; i >= 0; --i)
+            sb.append((codeWord >>> i) & 1);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,28 @@
+package ShannonCoding;
+
+/**
+ * @author Lukas
+ */
+
+/**
+ * Receives phase timings and statistics of every encode and decode of Shannon.
+ * Methods are called on the thread which called encode or decode, listener which is shared by several
+ * Shannon instances has to be thread safe.
+ */
+public interface CodecListener {
+
+    //Listener which ignores everything
+    CodecListener NONE = new CodecListener() { };
+
+    default void phaseStarted(CodecPhase phase) { }
+
+    /**
+     * @param nanos time the phase took
+     */
+    default void phaseFinished(CodecPhase phase, long nanos) { }
+
+    /**
+     * Called once encode or decode finished successfully
+     */
+    default void finished(CodecStats stats) { }
+}
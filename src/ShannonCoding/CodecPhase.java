@@ -0,0 +1,26 @@
+package ShannonCoding;
+
+/**
+ * @author Lukas
+ */
+
+/**
+ * Phases of encoding and decoding reported to CodecListener
+ */
+public enum CodecPhase {
+    BLOCK_LENGTH("SELECTING BLOCK LENGTH"),
+    FREQUENCIES("CALCULATING FREQUENCIES"),
+    SYMBOL_CODING("CALCULATING SYMBOL ENCODING"),
+    ENCODING("ENCODING"),
+    DECODING("DECODING");
+
+    private final String description;
+
+    CodecPhase(String description) {
+        this.description = description;
+    }
+
+    public String getDescription() {
+        return description;
+    }
+}
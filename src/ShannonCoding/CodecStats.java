@@ -0,0 +1,162 @@
+package ShannonCoding;
+
+/**
+ * @author Lukas
+ */
+
+/**
+ * Statistics of one encode or decode
+ */
+public final class CodecStats {
+
+    //Whether these are statistics of encoding, otherwise of decoding
+    private final boolean encoding;
+
+    private final long[] phaseNanos = new long[CodecPhase.values().length];
+
+    private long bytesIn;
+    private long bytesOut;
+    private long blocks;
+    private int blockLength;
+    private int dictionarySize;
+
+    //Bits per block, known only when encoding
+    private double entropy = Double.NaN;
+    private double averageCodeLength = Double.NaN;
+    //Whether the code was built of a sample of the data, entropy and average code length are of the sample then
+    private boolean sampled;
+
+    CodecStats(boolean encoding) {
+        this.encoding = encoding;
+    }
+
+    void addPhaseNanos(CodecPhase phase, long nanos) {
+        phaseNanos[phase.ordinal()] += nanos;
+    }
+
+    void setBytes(long bytesIn, long bytesOut) {
+        this.bytesIn = bytesIn;
+        this.bytesOut = bytesOut;
+    }
+
+    void setBlocks(long blocks) {
+        this.blocks = blocks;
+    }
+
+    void setCodeBook(CodeBook codeBook) {
+        this.blocks = codeBook.getBlockCount();
+        this.blockLength = codeBook.getBlockLength();
+        this.dictionarySize = codeBook.size();
+        this.entropy = codeBook.entropy();
+        this.averageCodeLength = codeBook.averageCodeLength();
+    }
+
+    void setSampled(boolean sampled) {
+        this.sampled = sampled;
+    }
+
+    /**
+     * @return nanoseconds spent in phase, 0 if phase wasn't run
+     */
+    public long getPhaseNanos(CodecPhase phase) {
+        return phaseNanos[phase.ordinal()];
+    }
+
+    public long getTotalNanos() {
+        long total = 0;
+        for (long nanos : phaseNanos)
+            total += nanos;
+        return total;
+    }
+
+    public long getBytesIn() {
+        return bytesIn;
+    }
+
+    public long getBytesOut() {
+        return bytesOut;
+    }
+
+    public long getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * @return block length in bits the data was coded with, 0 when decoding
+     */
+    public int getBlockLength() {
+        return blockLength;
+    }
+
+    /**
+     * @return number of blocks in the dictionary, 0 when decoding
+     */
+    public int getDictionarySize() {
+        return dictionarySize;
+    }
+
+    public boolean isEncoding() {
+        return encoding;
+    }
+
+    /**
+     * @return encoded size divided by original size
+     */
+    public double getCompressionRatio() {
+        long original = encoding ? bytesIn : bytesOut;
+        long encoded = encoding ? bytesOut : bytesIn;
+        return original == 0 ? Double.NaN : (double) encoded / original;
+    }
+
+    /**
+     * @return entropy of blocks in bits per block, of the sample if isSampled, NaN when decoding
+     */
+    public double getEntropy() {
+        return entropy;
+    }
+
+    /**
+     * @return average codeWord length in bits per block, over the sample if isSampled, NaN when decoding
+     */
+    public double getAverageCodeLength() {
+        return averageCodeLength;
+    }
+
+    /**
+     * @return whether the code was built of a sample of the data, then entropy and average codeWord length are
+     *          estimates of the sample
+     */
+    public boolean isSampled() {
+        return sampled;
+    }
+
+    /**
+     * @return how many bits per block the code is longer than the entropy, less than 1 for Shannon code
+     */
+    public double getCodeLengthGap() {
+        return averageCodeLength - entropy;
+    }
+
+    /**
+     * @return original bytes per second
+     */
+    public double getThroughput() {
+        long original = encoding ? bytesIn : bytesOut;
+        long nanos = getTotalNanos();
+        return nanos == 0 ? Double.NaN : original * 1e9 / nanos;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("IN: %d B, OUT: %d B, RATIO: %.4f, BLOCKS: %d", bytesIn, bytesOut,
+                getCompressionRatio(), blocks));
+        if (!Double.isNaN(entropy))
+            sb.append(String.format(", BLOCK LENGTH: %d, DICTIONARY: %d, ENTROPY: %.4f, "
+                    + "AVERAGE CODE LENGTH: %.4f bits/block", blockLength, dictionarySize, entropy, averageCodeLength));
+        if (sampled)
+            sb.append(" OF A SAMPLE");
+        sb.append(String.format(", THROUGHPUT: %.1f MB/s", getThroughput() / (1 << 20)));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,447 @@
+package ShannonCoding;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * @author Lukas
+ */
+
+/**
+ * Multi-level lookup table which resolves prefix codewords by peeking several bits at once.
+ *
+ * Root table is indexed by the first ROOT_BITS bits of the input. Codewords which are not longer than the
+ * root index are replicated over every entry they prefix. Longer codewords are grouped by their root prefix and
+ * resolved through a sub table, which can link further sub tables in the same way, so the table size stays
+ * bounded no matter how long the longest codeword is.
+ *
+ * Every table entry is a primitive int:
+ *      leaf:    [symbol : 24 bits][0 : 1 bit][bits consumed on this level : 7 bits]
+ *      link:    [sub table offset : 24 bits][1 : 1 bit][sub table index bits : 7 bits]
+ *      invalid: 0 (bit sequence which is not a prefix of any codeword)
+ *
+ * Decoding goes through a second, multi-symbol table indexed by next ROOT_BITS bits, even if the root table is
+ * smaller. Its entry holds every whole codeWord of the index decoded at once, their blocks already packed as
+ * output bits, so short codeWords of short blocks take one lookup and one write for several blocks.
+ */
+final class DecodeTable {
+
+    //Longest codeword this table supports, codewords are stored in int
+    static final int MAX_CODE_LENGTH = 32;
+
+    private static final int ROOT_BITS = 11;
+    private static final int SUB_BITS = 8;
+
+    //Most output bits one multi-symbol entry holds
+    private static final int MULTI_OUTPUT_BITS = 48;
+    //Decoded bytes decodeBytes collects before writing them
+    private static final int BYTES_CHUNK_SIZE = 64 << 10;
+
+    private static final int LINK_FLAG = 0x80;
+    private static final int LENGTH_MASK = 0x7F;
+
+    private int[] table;
+    private int size;
+
+    private final int rootBits;
+    private final int maxCodeLength;
+
+    //Built by the first decode, table can be shared by threads which decode the same block length
+    private volatile MultiSymbolTable multiTable;
+
+    /**
+     * @param symbols block values
+     * @param codes codeWords of blocks, right aligned
+     * @param lengths codeWord lengths in bits
+     * @param count number of used entries in previous arrays
+     */
+    DecodeTable(int[] symbols, int[] codes, int[] lengths, int count) {
+        int maxLength = 0;
+        for (int i = 0; i < count; ++i) {
+            if (lengths[i] < 1 || lengths[i] > MAX_CODE_LENGTH)
+                throw new IllegalArgumentException("CodeWord length " + lengths[i] + " is out of range");
+            maxLength = Math.max(maxLength, lengths[i]);
+        }
+        this.maxCodeLength = maxLength;
+        this.rootBits = Math.max(1, Math.min(ROOT_BITS, maxLength));
+        this.table = new int[1 << rootBits];
+        this.size = table.length;
+
+        int[] order = new int[count];
+        for (int i = 0; i < count; ++i)
+            order[i] = i;
+        fill(0, rootBits, 0, symbols, codes, lengths, order, count);
+        this.table = Arrays.copyOf(table, size);
+    }
+
+    /**
+     * Fills the table located at tableOffset with codeWords, skipping first consumed bits of every codeWord
+     */
+    private void fill(int tableOffset, int tableBits, int consumed, int[] symbols, int[] codes, int[] lengths,
+                      int[] order, int count) {
+
+        //Codewords which do not fit into this table, grouped by their index in this table
+        int[] longCount = new int[1 << tableBits];
+        int[] longMax = new int[1 << tableBits];
+
+        for (int i = 0; i < count; ++i) {
+            int c = order[i];
+            int remaining = lengths[c] - consumed;
+            if (remaining <= tableBits) {
+                int index = (bitsAt(codes[c], lengths[c], consumed, remaining)) << (tableBits - remaining);
+                int entry = (symbols[c] << 8) | remaining;
+                for (int j = 0; j < 1 << (tableBits - remaining); ++j) {
+                    if (table[tableOffset + index + j] != 0)
+                        throw new IllegalArgumentException("Codewords are not prefix free");
+                    table[tableOffset + index + j] = entry;
+                }
+            } else {
+                int index = bitsAt(codes[c], lengths[c], consumed, tableBits);
+                longCount[index]++;
+                longMax[index] = Math.max(longMax[index], remaining - tableBits);
+            }
+        }
+
+        //Bucketing long codeWords by their index, so every sub table gets only its own codeWords
+        int[] start = new int[longCount.length + 1];
+        for (int index = 0; index < longCount.length; ++index)
+            start[index + 1] = start[index] + longCount[index];
+        if (start[longCount.length] == 0)
+            return;
+
+        int[] bucketed = new int[start[longCount.length]];
+        int[] next = Arrays.copyOf(start, longCount.length);
+        for (int i = 0; i < count; ++i) {
+            int c = order[i];
+            if (lengths[c] - consumed > tableBits)
+                bucketed[next[bitsAt(codes[c], lengths[c], consumed, tableBits)]++] = c;
+        }
+
+        for (int index = 0; index < longCount.length; ++index) {
+            if (longCount[index] == 0)
+                continue;
+            if (table[tableOffset + index] != 0)
+                throw new IllegalArgumentException("Codewords are not prefix free");
+
+            int subBits = Math.min(SUB_BITS, longMax[index]);
+            int subOffset = allocate(1 << subBits);
+            table[tableOffset + index] = (subOffset << 8) | LINK_FLAG | subBits;
+
+            int[] subOrder = Arrays.copyOfRange(bucketed, start[index], start[index + 1]);
+            fill(subOffset, subBits, consumed + tableBits, symbols, codes, lengths, subOrder, subOrder.length);
+        }
+    }
+
+    private int allocate(int entries) {
+        if (size + entries > table.length)
+            table = Arrays.copyOf(table, Math.max(table.length * 2, size + entries));
+        int offset = size;
+        size += entries;
+        return offset;
+    }
+
+    /**
+     * @return count bits of codeWord, starting after first skip bits
+     */
+    private static int bitsAt(int code, int length, int skip, int count) {
+        return (int) (((code & 0xFFFFFFFFL) >>> (length - skip - count)) & ((1L << count) - 1));
+    }
+
+    int getRootBits() {
+        return rootBits;
+    }
+
+    int getMaxCodeLength() {
+        return maxCodeLength;
+    }
+
+    /**
+     * @return number of int entries of root and all sub tables
+     */
+    int entryCount() {
+        return table.length;
+    }
+
+    /**
+     * Resolves one codeWord from the bit window.
+     * @param window bit window, next unread bit is bit (available - 1)
+     * @param available number of valid bits in window, must be at least getMaxCodeLength()
+     * @return entry of the decoded symbol, see symbol(int) and length(int); 0 if window holds no valid codeWord
+     */
+    int lookup(long window, int available) {
+        int bits = rootBits;
+        int consumed = 0;
+        int offset = 0;
+        while (true) {
+            int entry = table[offset + (int) ((window >>> (available - consumed - bits)) & ((1L << bits) - 1))];
+            if ((entry & LINK_FLAG) == 0) {
+                if (entry == 0)
+                    return 0;
+                //Replacing level length with total codeWord length
+                return (entry & ~LENGTH_MASK) | (consumed + (entry & LENGTH_MASK));
+            }
+            consumed += bits;
+            bits = entry & LENGTH_MASK;
+            offset = entry >>> 8;
+        }
+    }
+
+    /**
+     * Decodes blocks from br until bitCount bits are written to bw, last block can be shorter than block length
+     */
+    void decode(BufferedBitReader br, int blockLength, long bitCount, BufferedBitWriter bw) throws IOException {
+        long[] multi = multiTable(blockLength);
+        if ((blockLength == 8 || blockLength == 16) && (bw.getBitPosition() & 7) == 0)
+            bitCount = decodeBytes(br, blockLength, multi, bitCount, bw);
+        //Every block of an entry is a whole block as long as an entry's worth of output bits is left
+        while (bitCount >= MULTI_OUTPUT_BITS)
+            bitCount -= decodeStep(br, blockLength, multi, bw);
+
+        int maxCodeLength = this.maxCodeLength;
+        while (bitCount > 0) {
+            //Past the end of input peeked bits are zeroes, skipBits guards against decoding them
+            int entry = lookup(br.peekBits(maxCodeLength), maxCodeLength);
+            if (entry == 0)
+                throw new IOException("Encoded data is corrupted");
+            br.skipBits(length(entry));
+
+            int length = (int) Math.min(blockLength, bitCount);
+            bw.writeBits(symbol(entry), length);
+            bitCount -= length;
+        }
+    }
+
+    /**
+     * Decodes blocks of whole bytes straight into a byte array, which is written to bw in bulk, bw has to be
+     * byte aligned
+     * @return number of bits left to decode, less than MULTI_OUTPUT_BITS
+     */
+    private long decodeBytes(BufferedBitReader br, int blockLength, long[] multi, long bitCount,
+                             BufferedBitWriter bw) throws IOException {
+        int maxCodeLength = this.maxCodeLength;
+        //Room for one whole 8 byte store past the chunk
+        byte[] chunk = new byte[(int) Math.min(BYTES_CHUNK_SIZE, bitCount / 8) + 8];
+        ByteBuffer output = ByteBuffer.wrap(chunk);
+        int position = 0;
+        while (bitCount >= MULTI_OUTPUT_BITS) {
+            long entry = multi[(int) br.peekBits(ROOT_BITS)];
+            int decodedBits = (int) (entry >>> 8) & 0xFF;
+            long decoded = entry >>> 16;
+            if (decodedBits != 0)
+                br.skipBits((int) entry & 0xFF);
+            else {
+                //CodeWord longer than the index
+                int symbolEntry = lookup(br.peekBits(maxCodeLength), maxCodeLength);
+                if (symbolEntry == 0)
+                    throw new IOException("Encoded data is corrupted");
+                br.skipBits(length(symbolEntry));
+                decodedBits = blockLength;
+                decoded = symbol(symbolEntry);
+            }
+            output.putLong(position, decoded << (64 - decodedBits));
+            position += decodedBits >>> 3;
+            bitCount -= decodedBits;
+            if (position >= chunk.length - 8) {
+                bw.writeBytes(chunk, 0, position);
+                position = 0;
+            }
+        }
+        bw.writeBytes(chunk, 0, position);
+        return bitCount;
+    }
+
+    /**
+     * Decodes four independent streams in turns within one loop, so lookups of one stream don't wait for
+     * codeWord lengths of the others. Every stream goes through the same steps as decode. Streams are finished
+     * one by one through decode once any of them gets close to its end.
+     * @param input coded streams, stream i is bytes [inputOffsets[i], inputOffsets[i + 1])
+     * @param output decoded parts, part of stream i is bytes [outputOffsets[i], outputOffsets[i + 1])
+     * @throws IOException if stream doesn't hold its part, or more than padding up to the byte boundary is left
+     */
+    void decodeStreams(ByteBuffer input, int[] inputOffsets, int blockLength, ByteBuffer output,
+                       int[] outputOffsets) throws IOException {
+        if (inputOffsets.length != 5 || outputOffsets.length != 5)
+            throw new IllegalArgumentException("Exactly four streams are decoded at once");
+        long[] multi = multiTable(blockLength);
+
+        Stream[] streams = new Stream[4];
+        for (int i = 0; i < streams.length; ++i)
+            streams[i] = new Stream(inputOffsets[i], inputOffsets[i + 1], outputOffsets[i], outputOffsets[i + 1]);
+        //Streams are stepped by hand, a loop over them decodes about a quarter slower
+        Stream stream0 = streams[0], stream1 = streams[1], stream2 = streams[2], stream3 = streams[3];
+
+        while (stream0.canStep() && stream1.canStep() && stream2.canStep() && stream3.canStep()) {
+            step(stream0, input, blockLength, multi, output);
+            step(stream1, input, blockLength, multi, output);
+            step(stream2, input, blockLength, multi, output);
+            step(stream3, input, blockLength, multi, output);
+        }
+
+        for (Stream stream : streams)
+            finishStream(input, stream, blockLength, output);
+    }
+
+    /**
+     * Decodes blocks of one multi-symbol entry, or one block if its codeWord is longer than the entry's index,
+     * from stream of decodeStreams
+     */
+    private void step(Stream stream, ByteBuffer input, int blockLength, long[] multi, ByteBuffer output)
+            throws IOException {
+        long bits = stream.inputBits | input.getLong(stream.inputPosition) >>> stream.inputCount;
+        int loaded = (64 - stream.inputCount) >>> 3;
+        stream.inputPosition += loaded;
+        long entry = multi[(int) (bits >>> (64 - ROOT_BITS))];
+        int decodedBits = (int) (entry >>> 8) & 0xFF;
+        int consumed = (int) entry & 0xFF;
+        long decoded = entry >>> 16;
+        if (decodedBits == 0) {
+            //CodeWord longer than the index
+            int symbolEntry = lookup(bits >>> (64 - maxCodeLength), maxCodeLength);
+            if (symbolEntry == 0)
+                throw new IOException("Encoded data is corrupted");
+            decodedBits = blockLength;
+            consumed = length(symbolEntry);
+            decoded = symbol(symbolEntry);
+        }
+        stream.inputBits = bits << consumed;
+        stream.inputCount += (loaded << 3) - consumed;
+        stream.remaining -= decodedBits;
+
+        int count = stream.outputCount + decodedBits;
+        long out = stream.outputBits | decoded << (64 - count);
+        output.putLong(stream.outputPosition, out);
+        int stored = count >>> 3;
+        stream.outputPosition += stored;
+        stream.outputBits = out << (stored << 3);
+        stream.outputCount = count & 7;
+    }
+
+    /**
+     * Decodes rest of one stream of decodeStreams
+     */
+    private void finishStream(ByteBuffer input, Stream stream, int blockLength, ByteBuffer output)
+            throws IOException {
+        //Reader starts at the byte of the first bit not yet consumed
+        int position = stream.inputPosition - (stream.inputCount + 7) / 8;
+        ByteBuffer coded = input.duplicate();
+        coded.limit(stream.inputEnd).position(position);
+        BufferedBitReader br = new BufferedBitReader(coded.slice());
+        br.skipBits(-stream.inputCount & 7);
+
+        ByteBuffer part = output.duplicate();
+        part.limit(stream.outputEnd).position(stream.outputPosition);
+        BufferedBitWriter bw = new BufferedBitWriter(part);
+        bw.writeBits(stream.outputBits >>> (64 - stream.outputCount), stream.outputCount);
+        decode(br, blockLength, stream.remaining, bw);
+        bw.flush();
+        if ((long) (stream.inputEnd - position) * 8 - br.getBitPosition() >= 8)
+            throw new IOException("Encoded data is corrupted");
+    }
+
+    private long[] multiTable(int blockLength) {
+        MultiSymbolTable multiTable = this.multiTable;
+        if (multiTable == null || multiTable.blockLength != blockLength) {
+            multiTable = new MultiSymbolTable(blockLength);
+            this.multiTable = multiTable;
+        }
+        return multiTable.entries;
+    }
+
+    /**
+     * Decodes blocks of one multi-symbol entry, or one block if its codeWord is longer than the entry's index.
+     * At least MULTI_OUTPUT_BITS bits have to be left to decode
+     * @return number of bits written
+     */
+    private int decodeStep(BufferedBitReader br, int blockLength, long[] multi, BufferedBitWriter bw)
+            throws IOException {
+        long entry = multi[(int) br.peekBits(ROOT_BITS)];
+        int outputBits = (int) (entry >>> 8) & 0xFF;
+        if (outputBits != 0) {
+            br.skipBits((int) entry & 0xFF);
+            bw.writeBits(entry >>> 16, outputBits);
+            return outputBits;
+        }
+
+        //CodeWord longer than the index
+        int symbolEntry = lookup(br.peekBits(maxCodeLength), maxCodeLength);
+        if (symbolEntry == 0)
+            throw new IOException("Encoded data is corrupted");
+        br.skipBits(length(symbolEntry));
+        bw.writeBits(symbol(symbolEntry), blockLength);
+        return blockLength;
+    }
+
+    /**
+     * Entries of every root index:
+     *      [output bits of decoded blocks : 48 bits][number of output bits : 8 bits][bits consumed : 8 bits]
+     * Number of output bits is 0 if the index doesn't hold a whole codeWord.
+     */
+    private final class MultiSymbolTable {
+        final int blockLength;
+        final long[] entries;
+
+        MultiSymbolTable(int blockLength) {
+            this.blockLength = blockLength;
+            this.entries = new long[1 << ROOT_BITS];
+            for (int index = 0; index < entries.length; ++index) {
+                long output = 0;
+                int outputBits = 0;
+                int consumed = 0;
+                //Root entries are replicated over every suffix, so index bits after consumed ones can be zeroes
+                while (outputBits + blockLength <= MULTI_OUTPUT_BITS && consumed < ROOT_BITS) {
+                    int remaining = (index << consumed) & ((1 << ROOT_BITS) - 1);
+                    int entry = table[remaining >>> (ROOT_BITS - rootBits)];
+                    if (entry == 0 || (entry & LINK_FLAG) != 0 || length(entry) > ROOT_BITS - consumed)
+                        break;
+                    output = (output << blockLength) | symbol(entry);
+                    outputBits += blockLength;
+                    consumed += length(entry);
+                }
+                entries[index] = (output << 16) | (outputBits << 8) | consumed;
+            }
+        }
+    }
+
+    /**
+     * State of one stream of decodeStreams
+     */
+    private static final class Stream {
+        final int inputEnd;
+        final int outputEnd;
+
+        //Left aligned bits loaded from the stream, their count and index of the next byte to load
+        long inputBits;
+        int inputCount;
+        int inputPosition;
+        //Left aligned decoded bits not yet stored, their count and index of the byte they go to
+        long outputBits;
+        int outputCount;
+        int outputPosition;
+        //Bits of the part left to decode
+        long remaining;
+
+        Stream(int inputFrom, int inputEnd, int outputFrom, int outputEnd) {
+            this.inputEnd = inputEnd;
+            this.outputEnd = outputEnd;
+            this.inputPosition = inputFrom;
+            this.outputPosition = outputFrom;
+            this.remaining = (long) (outputEnd - outputFrom) * 8;
+        }
+
+        /**
+         * @return whether a whole 8 bytes can be loaded from the stream and stored into its part
+         */
+        boolean canStep() {
+            return remaining >= 64 && inputPosition + 8 <= inputEnd;
+        }
+    }
+
+    static int symbol(int entry) {
+        return entry >>> 8;
+    }
+
+    static int length(int entry) {
+        return entry & LENGTH_MASK;
+    }
+}
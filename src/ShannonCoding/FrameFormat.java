@@ -0,0 +1,488 @@
+package ShannonCoding;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * @author Lukas
+ */
+
+/**
+ * Layout of the framed format.
+ *
+ * Header:
+ * [24 bits]: MAGIC, "SHN" in ASCII
+ * [8 bits]: VERSION_CANONICAL, VERSION_MODEL or VERSION
+ * [8 bits]: bit block length
+ * for VERSION_CANONICAL:
+ *      [8 bits]: 1 if code lengths follow, 0 if every frame has its own
+ *      [n bits] - code lengths, see CodeBook.writeCodeLengths
+ *      [0-7 bits] - 0 up to the byte boundary
+ * for VERSION, which is only read:
+ *      [32 bits]: number of dictionary' blocks, 0 if every frame has its own dictionary
+ *      [n bits] - 'dictionary', see CodeBook.readDictionary
+ *      [0-7 bits] - 0 up to the byte boundary
+ * for VERSION_MODEL:
+ *      [64 bits]: id of ShannonModel which frames are coded with, resolved through ModelCache
+ *
+ * Header is followed by frames until the end of file. Every frame is coded independently and starts
+ * at the byte boundary:
+ * [8 bits]: frame type, FRAME_CODED or FRAME_OWN_DICTIONARY, with FRAME_INTERLEAVED flag, or FRAME_STORED
+ * [32 bits]: original byte length of frame
+ * [64 bits]: bit length x of the rest of frame
+ * [x bits]: for FRAME_OWN_DICTIONARY code lengths, or for VERSION 32 bits of dictionary size and 'dictionary',
+ *           then coded blocks
+ * [0-7 bits]: 0 up to the byte boundary
+ *
+ * FRAME_STORED has original bytes of frame as they are in place of coded blocks, its bit length is original
+ * length x 8. Frames which coding doesn't make shorter are stored.
+ *
+ * Blocks are counted from the start of every frame, so only the last block of a frame can be shorter than
+ * block length.
+ *
+ * Frame with FRAME_INTERLEAVED flag has its original bytes split into INTERLEAVED_STREAMS parts of whole blocks,
+ * see streamOffsets, and every part is coded into its own stream, so parts are decoded side by side.
+ * Coded blocks of such frame are:
+ * [0-7 bits]: 0 up to the byte boundary
+ * [3 x 64 bits]: byte lengths of the first three streams, the last stream takes the rest of frame
+ * 4 times:
+ *      [n bits]: coded blocks of the part
+ *      [0-7 bits]: 0 up to the byte boundary
+ *
+ * Last frame can be FRAME_INDEX of original length 0, which lists sync points to start decoding at:
+ * [64 bits]: original byte length of all frames
+ * [32 bits]: number n of other frames
+ * n times:
+ *      [64 bits]: offset of frame's original bytes
+ *      [64 bits]: byte offset of frame from the start of header
+ * [64 bits]: byte offset of the index frame from the start of header, so it is found from the end of file
+ */
+final class FrameFormat {
+
+    static final int MAGIC = 0x53484E;
+    //Header with blocks, their codeWords and lengths
+    static final int VERSION = 1;
+    //Header which refers to a pre-trained model instead of holding the dictionary
+    static final int VERSION_MODEL = 2;
+    //Header with only code lengths of canonical codeWords
+    static final int VERSION_CANONICAL = 3;
+
+    //Frame coded with header's dictionary
+    static final int FRAME_CODED = 0;
+    //Frame which starts with its own dictionary
+    static final int FRAME_OWN_DICTIONARY = 1;
+    //Flag of frame type, frame's parts are coded into separate streams
+    static final int FRAME_INTERLEAVED = 2;
+    //Frame which holds index of other frames instead of coded blocks
+    static final int FRAME_INDEX = 4;
+    //Frame which holds its original bytes as they are
+    static final int FRAME_STORED = 8;
+
+    static final int INTERLEAVED_STREAMS = 4;
+    //Byte lengths of all streams but the last one
+    static final int JUMP_TABLE_LENGTH = (INTERLEAVED_STREAMS - 1) * 8;
+
+    //Frame type, original length and bit length
+    static final int FRAME_HEADER_LENGTH = 1 + 4 + 8;
+
+    private FrameFormat() { }
+
+    /**
+     * @param codeBook dictionary shared by frames, null if every frame has its own
+     */
+    static void writeHeader(BufferedBitWriter bw, int blockLength, CodeBook codeBook) throws IOException {
+        bw.writeBits(MAGIC, 24);
+        bw.writeBits(VERSION_CANONICAL, 8);
+        bw.writeBits(blockLength, 8);
+        //Empty input has no code lengths to write
+        boolean hasLengths = codeBook != null && codeBook.size() > 0;
+        bw.writeBits(hasLengths ? 1 : 0, 8);
+        if (hasLengths)
+            codeBook.writeCodeLengths(bw);
+        bw.alignToByte();
+    }
+
+    /**
+     * @return most bytes writeHeader can take for code book of dictionarySize blocks
+     */
+    static long maxHeaderLength(long dictionarySize, int blockLength) {
+        return 6 + (CodeBook.maxCodeLengthsBits(dictionarySize, blockLength) + 7) / 8;
+    }
+
+    /**
+     * Writes header which refers to model instead of holding the dictionary
+     */
+    static void writeModelHeader(BufferedBitWriter bw, int blockLength, long modelId) throws IOException {
+        bw.writeBits(MAGIC, 24);
+        bw.writeBits(VERSION_MODEL, 8);
+        bw.writeBits(blockLength, 8);
+        bw.writeBits(modelId >>> 32, 32);
+        bw.writeBits(modelId, 32);
+    }
+
+    /**
+     * @param models cache which models referred by header are resolved from, if null header's table of such
+     *               header is left null
+     */
+    static Header readHeader(BufferedBitReader br, ModelCache models) throws IOException {
+        if (br.readBits(24) != MAGIC)
+            throw new IOException("Not a framed Shannon file");
+        int version = (int) br.readBits(8);
+        if (version != VERSION && version != VERSION_MODEL && version != VERSION_CANONICAL)
+            throw new IOException("Unsupported format version " + version);
+
+        Header header = new Header();
+        header.version = version;
+        header.blockLength = (int) br.readBits(8);
+        if (header.blockLength < 1 || header.blockLength > 16)
+            throw new IOException("Block length " + header.blockLength + " is out of range");
+
+        if (version == VERSION_MODEL) {
+            header.modelId = (br.readBits(32) << 32) | br.readBits(32);
+            header.hasModel = true;
+            ShannonModel model = models == null ? null : models.get(header.modelId);
+            if (model != null) {
+                if (model.getBlockLength() != header.blockLength)
+                    throw new IOException("Model " + ModelCache.toHex(header.modelId) + " has block length "
+                            + model.getBlockLength() + ", header has " + header.blockLength);
+                header.table = model.getDecodedHeader().table;
+            }
+            return header;
+        }
+
+        if (version == VERSION_CANONICAL) {
+            int hasLengths = (int) br.readBits(8);
+            if (hasLengths > 1)
+                throw new IOException("Header is corrupted");
+            if (hasLengths == 1)
+                header.table = CodeBook.readCodeLengths(br, header.blockLength);
+        }
+        else {
+            int dictionarySize = (int) br.readBits(32);
+            if (dictionarySize != 0)
+                header.table = CodeBook.readDictionary(br, header.blockLength, dictionarySize);
+        }
+        br.alignToByte();
+        return header;
+    }
+
+    /**
+     * Codes originalLength bytes from br into a frame
+     * @param ownDictionary whether codeBook's dictionary is written into the frame
+     */
+    static EncodedFrame encodeFrame(CodeBook codeBook, boolean ownDictionary, BufferedBitReader br,
+                                    int originalLength) throws IOException {
+        return encodeFrame(codeBook, ownDictionary, false, br, originalLength);
+    }
+
+    /**
+     * @param interleaved whether parts of the frame are coded into separate streams
+     */
+    static EncodedFrame encodeFrame(CodeBook codeBook, boolean ownDictionary, boolean interleaved,
+                                    BufferedBitReader br, int originalLength) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(originalLength);
+        EncodedFrame frame = new EncodedFrame();
+        frame.type = (ownDictionary ? FRAME_OWN_DICTIONARY : FRAME_CODED) | (interleaved ? FRAME_INTERLEAVED : 0);
+        frame.originalLength = originalLength;
+
+        try (BufferedBitWriter bw = new BufferedBitWriter(payload)) {
+            if (ownDictionary)
+                codeBook.writeCodeLengths(bw);
+            if (interleaved)
+                encodeStreams(codeBook, br, originalLength, bw);
+            else
+                codeBook.encode(br, (long) originalLength * 8, bw);
+            frame.bitLength = bw.getBitPosition();
+        }
+        frame.payload = payload.toByteArray();
+        return frame;
+    }
+
+    /**
+     * @return frame which holds originalLength bytes from br as they are
+     */
+    static EncodedFrame storeFrame(BufferedBitReader br, int originalLength) throws IOException {
+        EncodedFrame frame = new EncodedFrame();
+        frame.type = FRAME_STORED;
+        frame.originalLength = originalLength;
+        frame.bitLength = (long) originalLength * 8;
+        frame.payload = new byte[originalLength];
+        br.readBytes(frame.payload, 0, originalLength);
+        return frame;
+    }
+
+    /**
+     * @param br reader of the same bytes frame was coded from
+     * @return frame, or stored frame of its bytes if coding didn't make them shorter
+     */
+    static EncodedFrame storeIfLonger(EncodedFrame frame, BufferedBitReader br) throws IOException {
+        if (frame.bitLength < (long) frame.originalLength * 8)
+            return frame;
+        return storeFrame(br, frame.originalLength);
+    }
+
+    private static void encodeStreams(CodeBook codeBook, BufferedBitReader br, int originalLength,
+                                      BufferedBitWriter bw) throws IOException {
+        int[] offsets = streamOffsets(originalLength, codeBook.getBlockLength());
+        byte[][] streams = new byte[INTERLEAVED_STREAMS][];
+        for (int i = 0; i < INTERLEAVED_STREAMS; ++i) {
+            int partLength = offsets[i + 1] - offsets[i];
+            ByteArrayOutputStream stream = new ByteArrayOutputStream(partLength);
+            try (BufferedBitWriter streamWriter = new BufferedBitWriter(stream)) {
+                codeBook.encode(br, (long) partLength * 8, streamWriter);
+            }
+            streams[i] = stream.toByteArray();
+        }
+
+        bw.alignToByte();
+        for (int i = 0; i < INTERLEAVED_STREAMS - 1; ++i) {
+            bw.writeBits((long) streams[i].length >>> 32, 32);
+            bw.writeBits(streams[i].length, 32);
+        }
+        for (byte[] stream : streams)
+            bw.writeBytes(stream, 0, stream.length);
+    }
+
+    /**
+     * Parts are of equal number of whole byte aligned block groups, the last one also gets bytes which don't
+     * make a whole group
+     * @return INTERLEAVED_STREAMS + 1 offsets, part i is bytes [offsets[i], offsets[i + 1]) of a frame
+     */
+    static int[] streamOffsets(int originalLength, int blockLength) {
+        int alignment = FrequencyCounter.alignment(blockLength);
+        int groups = originalLength / alignment;
+        long partLength = (long) (groups + INTERLEAVED_STREAMS - 1) / INTERLEAVED_STREAMS * alignment;
+        int[] offsets = new int[INTERLEAVED_STREAMS + 1];
+        for (int i = 1; i < INTERLEAVED_STREAMS; ++i)
+            offsets[i] = (int) Math.min((long) groups * alignment, i * partLength);
+        offsets[INTERLEAVED_STREAMS] = originalLength;
+        return offsets;
+    }
+
+    /**
+     * Codes bytes between data's position and limit into a frame written straight into target at its position,
+     * target's position is moved past the frame. Frame is stored instead if coding didn't make it shorter
+     * @throws IOException if target has not enough space left
+     */
+    static void encodeFrame(CodeBook codeBook, ByteBuffer data, ByteBuffer target) throws IOException {
+        int originalLength = data.remaining();
+        int start = target.position();
+        if (target.remaining() < FRAME_HEADER_LENGTH)
+            throw new IOException("Output buffer is full");
+        target.position(start + FRAME_HEADER_LENGTH);
+
+        int type = FRAME_CODED;
+        long bitLength;
+        try (BufferedBitWriter bw = new BufferedBitWriter(target)) {
+            codeBook.encode(new BufferedBitReader(data.duplicate()), (long) originalLength * 8, bw);
+            bitLength = bw.getBitPosition();
+        }
+        if (bitLength >= (long) originalLength * 8) {
+            //Coded frame took at least as much space as its bytes will
+            target.position(start + FRAME_HEADER_LENGTH);
+            target.put(data.duplicate());
+            type = FRAME_STORED;
+            bitLength = (long) originalLength * 8;
+        }
+        //Header is filled in once the bit length is known
+        target.put(start, (byte) type);
+        target.putInt(start + 1, originalLength);
+        target.putLong(start + 5, bitLength);
+    }
+
+    /**
+     * @param originalOffsets offsets of original bytes of first count frames
+     * @param frameOffsets byte offsets of first count frames from the start of header
+     * @param indexOffset byte offset of the index frame itself from the start of header
+     */
+    static EncodedFrame encodeIndex(long[] originalOffsets, long[] frameOffsets, int count, long originalLength,
+                                    long indexOffset) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(indexLength(count));
+        EncodedFrame frame = new EncodedFrame();
+        frame.type = FRAME_INDEX;
+
+        try (BufferedBitWriter bw = new BufferedBitWriter(payload)) {
+            writeLong(bw, originalLength);
+            bw.writeBits(count, 32);
+            for (int i = 0; i < count; ++i) {
+                writeLong(bw, originalOffsets[i]);
+                writeLong(bw, frameOffsets[i]);
+            }
+            writeLong(bw, indexOffset);
+            frame.bitLength = bw.getBitPosition();
+        }
+        frame.payload = payload.toByteArray();
+        return frame;
+    }
+
+    /**
+     * @return byte length of the rest of index frame of count frames
+     */
+    static int indexLength(int count) {
+        return 8 + 4 + count * 16 + 8;
+    }
+
+    /**
+     * Reads rest of index frame which starts at br's current position
+     * @param size byte length of encoded data, which frame offsets must be within
+     */
+    static Index readIndex(BufferedBitReader br, Frame frame, long size) throws IOException {
+        long count = (frame.bitLength / 8 - indexLength(0)) / 16;
+        if (frame.type != FRAME_INDEX || count < 0 || count > Integer.MAX_VALUE
+                || frame.bitLength != indexLength((int) count) * 8L)
+            throw new IOException("Encoded data is corrupted");
+
+        Index index = new Index();
+        index.originalLength = readLong(br);
+        if (br.readBits(32) != count)
+            throw new IOException("Encoded data is corrupted");
+        index.originalOffsets = new long[(int) count];
+        index.frameOffsets = new long[(int) count];
+        for (int i = 0; i < count; ++i) {
+            index.originalOffsets[i] = readLong(br);
+            index.frameOffsets[i] = readLong(br);
+            //Frames are listed in order and original offsets start at 0
+            long originalFrom = i == 0 ? 0 : index.originalOffsets[i - 1];
+            long frameFrom = i == 0 ? 0 : index.frameOffsets[i - 1] + FRAME_HEADER_LENGTH;
+            if (index.originalOffsets[i] < originalFrom || (i == 0 && index.originalOffsets[i] != 0)
+                    || index.frameOffsets[i] < frameFrom || index.frameOffsets[i] > size - FRAME_HEADER_LENGTH)
+                throw new IOException("Encoded data is corrupted");
+        }
+        readLong(br);
+        if (count > 0 && index.originalLength < index.originalOffsets[(int) count - 1])
+            throw new IOException("Encoded data is corrupted");
+        return index;
+    }
+
+    private static void writeLong(BufferedBitWriter bw, long value) throws IOException {
+        bw.writeBits(value >>> 32, 32);
+        bw.writeBits(value, 32);
+    }
+
+    private static long readLong(BufferedBitReader br) throws IOException {
+        return (br.readBits(32) << 32) | br.readBits(32);
+    }
+
+    static void writeFrame(BufferedBitWriter bw, EncodedFrame frame) throws IOException {
+        bw.writeBits(frame.type, 8);
+        bw.writeBits(frame.originalLength, 32);
+        bw.writeBits(frame.bitLength >>> 32, 32);
+        bw.writeBits(frame.bitLength, 32);
+        bw.writeBytes(frame.payload, 0, frame.payload.length);
+    }
+
+    static Frame readFrameHeader(BufferedBitReader br) throws IOException {
+        Frame frame = new Frame();
+        frame.type = (int) br.readBits(8);
+        int baseType = frame.type & ~FRAME_INTERLEAVED;
+        if (baseType != FRAME_CODED && baseType != FRAME_OWN_DICTIONARY && frame.type != FRAME_INDEX
+                && frame.type != FRAME_STORED)
+            throw new IOException("Unknown frame type " + frame.type);
+        frame.originalLength = (int) br.readBits(32);
+        frame.bitLength = (br.readBits(32) << 32) | br.readBits(32);
+        if (frame.originalLength < 0 || frame.bitLength < 0 || frame.type == FRAME_INDEX && frame.originalLength != 0
+                || frame.type == FRAME_STORED && frame.bitLength != (long) frame.originalLength * 8)
+            throw new IOException("Encoded data is corrupted");
+        return frame;
+    }
+
+    /**
+     * Decodes frame which rest starts at br's current position, padding after the frame is not read
+     */
+    static void decodeFrame(BufferedBitReader br, Header header, Frame frame, BufferedBitWriter bw)
+            throws IOException {
+        long start = br.getBitPosition();
+        if (frame.type == FRAME_INDEX) {
+            //Index decodes to nothing, only readers which seek use it
+            for (long left = frame.bitLength; left > 0; left -= 32)
+                br.skipBits((int) Math.min(32, left));
+            return;
+        }
+        if (frame.type == FRAME_STORED) {
+            byte[] original = new byte[frame.originalLength];
+            br.readBytes(original, 0, original.length);
+            bw.writeBytes(original, 0, original.length);
+            return;
+        }
+
+        DecodeTable table = header.table;
+        boolean ownDictionary = (frame.type & ~FRAME_INTERLEAVED) == FRAME_OWN_DICTIONARY;
+        if (ownDictionary && header.version == VERSION)
+            table = CodeBook.readDictionary(br, header.blockLength, (int) br.readBits(32));
+        else if (ownDictionary)
+            table = CodeBook.readCodeLengths(br, header.blockLength);
+        else if (table == null && header.hasModel)
+            throw new IOException("Model " + ModelCache.toHex(header.modelId) + " is not available");
+        else if (table == null)
+            throw new IOException("Frame needs a dictionary, but header has none");
+
+        if ((frame.type & FRAME_INTERLEAVED) != 0)
+            decodeStreams(br, header.blockLength, table, frame, frame.bitLength - (br.getBitPosition() - start), bw);
+        else
+            table.decode(br, header.blockLength, (long) frame.originalLength * 8, bw);
+        if (br.getBitPosition() - start != frame.bitLength)
+            throw new IOException("Encoded data is corrupted");
+    }
+
+    /**
+     * Decodes streams of interleaved frame into its original bytes, then writes them to bw at once
+     * @param bitLength bits of frame left in br
+     */
+    private static void decodeStreams(BufferedBitReader br, int blockLength, DecodeTable table, Frame frame,
+                                      long bitLength, BufferedBitWriter bw) throws IOException {
+        long padding = -br.getBitPosition() & 7;
+        br.alignToByte();
+        long streamsLength = (bitLength - padding) / 8 - JUMP_TABLE_LENGTH;
+        if (streamsLength < 0 || (bitLength - padding) % 8 != 0 || streamsLength > Integer.MAX_VALUE)
+            throw new IOException("Encoded data is corrupted");
+
+        long[] streamLengths = new long[INTERLEAVED_STREAMS];
+        streamLengths[INTERLEAVED_STREAMS - 1] = streamsLength;
+        for (int i = 0; i < INTERLEAVED_STREAMS - 1; ++i) {
+            streamLengths[i] = (br.readBits(32) << 32) | br.readBits(32);
+            streamLengths[INTERLEAVED_STREAMS - 1] -= streamLengths[i];
+            if (streamLengths[i] < 0 || streamLengths[INTERLEAVED_STREAMS - 1] < 0)
+                throw new IOException("Encoded data is corrupted");
+        }
+        byte[] streams = new byte[(int) streamsLength];
+        br.readBytes(streams, 0, streams.length);
+
+        int[] inputOffsets = new int[INTERLEAVED_STREAMS + 1];
+        for (int i = 0; i < INTERLEAVED_STREAMS; ++i)
+            inputOffsets[i + 1] = inputOffsets[i] + (int) streamLengths[i];
+        byte[] original = new byte[frame.originalLength];
+        table.decodeStreams(ByteBuffer.wrap(streams), inputOffsets, blockLength, ByteBuffer.wrap(original),
+                streamOffsets(frame.originalLength, blockLength));
+        bw.writeBytes(original, 0, original.length);
+    }
+
+    static final class Header {
+        int version;
+        int blockLength;
+        //Decoding table of header's dictionary or model, null if frames have their own or model is unknown
+        DecodeTable table;
+        //Whether header refers to model of modelId
+        boolean hasModel;
+        long modelId;
+    }
+
+    static final class Frame {
+        int type;
+        int originalLength;
+        long bitLength;
+    }
+
+    static final class Index {
+        long originalLength;
+        long[] originalOffsets;
+        long[] frameOffsets;
+    }
+
+    static final class EncodedFrame {
+        int type;
+        int originalLength;
+        long bitLength;
+        byte[] payload;
+    }
+}
@@ -0,0 +1,319 @@
+package ShannonCoding;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * @author Lukas
+ */
+
+/**
+ * Counts block frequencies of a memory mapped file into a dense histogram indexed by block value.
+ *
+ * File is split into chunks which start at block aligned byte offsets (multiples of lcm(blockLength, 8) bits),
+ * so every chunk can be counted independently. In parallel mode chunks are counted on ForkJoinPool
+ * with their own histograms which are merged afterwards.
+ *
+ * Large files can be sampled instead, only chunks spread evenly over the file are counted then.
+ */
+final class FrequencyCounter {
+
+    //Bytes counted by one task, small enough for int counters of a chunk
+    private static final int CHUNK_SIZE = 8 << 20;
+    //Bytes of one sampled chunk
+    private static final int SAMPLE_CHUNK_SIZE = 64 << 10;
+
+    private FrequencyCounter() { }
+
+    /**
+     * @param input file which blocks are counted
+     * @param blockLength block length in bits
+     * @param parallel whether chunks are counted on ForkJoinPool
+     * @return histogram of size 2^blockLength, last block which is shorter than blockLength is counted by its value
+     */
+    static long[] count(MappedInput input, int blockLength, boolean parallel) {
+        long size = input.size();
+        long chunkSize = CHUNK_SIZE - CHUNK_SIZE % alignment(blockLength);
+        long chunkCount = (size + chunkSize - 1) / chunkSize;
+
+        if (!parallel || chunkCount <= 1) {
+            long[] histogram = new long[1 << blockLength];
+            int[] chunkHistogram = new int[1 << blockLength];
+            for (long i = 0; i < chunkCount; ++i) {
+                countChunk(input, i * chunkSize, Math.min(size, (i + 1) * chunkSize), blockLength, chunkHistogram);
+                merge(histogram, chunkHistogram);
+                Arrays.fill(chunkHistogram, 0);
+            }
+            return histogram;
+        }
+
+        return ForkJoinPool.commonPool().invoke(new CountTask(input, chunkSize, chunkSize, blockLength, 0, chunkCount));
+    }
+
+    /**
+     * Counts blocks of about sampleSize bytes of input, taken as chunks at even strides over the whole input
+     * @param sampleSize bytes to count, whole input is counted if it is not larger
+     * @return histogram of size 2^blockLength
+     */
+    static long[] sample(MappedInput input, long sampleSize, int blockLength, boolean parallel) {
+        long size = input.size();
+        if (sampleSize >= size)
+            return count(input, blockLength, parallel);
+
+        long chunkSize = sampleChunkSize(blockLength);
+        long chunkCount = Math.max(1, sampleSize / chunkSize);
+        long stride = sampleStride(size, chunkSize, chunkCount, blockLength);
+
+        long[] histogram;
+        if (parallel && chunkCount > 1)
+            histogram = ForkJoinPool.commonPool().invoke(
+                    new CountTask(input, stride, chunkSize, blockLength, 0, chunkCount));
+        else {
+            histogram = new long[1 << blockLength];
+            int[] chunkHistogram = new int[1 << blockLength];
+            for (long i = 0; i < chunkCount; ++i) {
+                countChunk(input, i * stride, Math.min(size, i * stride + chunkSize), blockLength, chunkHistogram);
+                merge(histogram, chunkHistogram);
+                Arrays.fill(chunkHistogram, 0);
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Counts blocks of about sampleSize bytes between position and limit of bytes, same way as a file is sampled
+     * @return histogram of size 2^blockLength
+     */
+    static long[] sample(ByteBuffer bytes, long sampleSize, int blockLength) {
+        int size = bytes.remaining();
+        if (sampleSize >= size)
+            return count(bytes, blockLength);
+
+        long chunkSize = sampleChunkSize(blockLength);
+        long chunkCount = Math.max(1, sampleSize / chunkSize);
+        long stride = sampleStride(size, chunkSize, chunkCount, blockLength);
+
+        long[] histogram = new long[1 << blockLength];
+        int[] chunkHistogram = new int[1 << blockLength];
+        for (long i = 0; i < chunkCount; ++i) {
+            ByteBuffer chunk = bytes.duplicate();
+            chunk.position(bytes.position() + (int) (i * stride));
+            chunk.limit((int) Math.min(bytes.limit(), chunk.position() + chunkSize));
+            countChunk(ByteBlockSource.of(chunk.slice()), chunk.limit() == bytes.limit(), blockLength, chunkHistogram);
+            merge(histogram, chunkHistogram);
+            Arrays.fill(chunkHistogram, 0);
+        }
+        return histogram;
+    }
+
+    private static long sampleChunkSize(int blockLength) {
+        int alignment = alignment(blockLength);
+        return Math.max(alignment, SAMPLE_CHUNK_SIZE - SAMPLE_CHUNK_SIZE % alignment);
+    }
+
+    private static long sampleStride(long size, long chunkSize, long chunkCount, int blockLength) {
+        long stride = size / chunkCount;
+        return Math.max(chunkSize, stride - stride % alignment(blockLength));
+    }
+
+    /**
+     * Gives frequency 1 to every block missing from a sample, so blocks which only occur outside the sample still
+     * get a codeWord, which is as long as the rarest block of the sample needs
+     */
+    static void addUnseen(long[] histogram) {
+        for (int block = 0; block < histogram.length; ++block) {
+            if (histogram[block] == 0)
+                histogram[block] = 1;
+        }
+    }
+
+    /**
+     * @return number of bytes after which block boundary and byte boundary meet again
+     */
+    static int alignment(int blockLength) {
+        int a = blockLength, b = 8;
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return blockLength / a;
+    }
+
+    /**
+     * Words are loaded at the byte of the next block, which starts at a multiple of gcd(blockLength, 8) bits
+     * within that byte, so at least 56 + gcd bits of the word are left for whole blocks
+     * @return number of whole blocks which fit in a 64 bit word loaded at the byte of the first one
+     */
+    static int blocksPerWord(int blockLength) {
+        return (56 + blockLength / alignment(blockLength)) / blockLength;
+    }
+
+    /**
+     * Counts blocks between position and limit of bytes, bytes itself is not modified
+     * @return histogram of size 2^blockLength, last block which is shorter than blockLength is counted by its value
+     */
+    static long[] count(ByteBuffer bytes, int blockLength) {
+        long[] histogram = new long[1 << blockLength];
+        int[] chunkHistogram = new int[1 << blockLength];
+        ByteBuffer chunk = bytes.duplicate();
+        int chunkSize = CHUNK_SIZE - CHUNK_SIZE % alignment(blockLength);
+        while (chunk.hasRemaining()) {
+            ByteBuffer slice = chunk.slice();
+            slice.limit(Math.min(slice.limit(), chunkSize));
+            chunk.position(chunk.position() + slice.remaining());
+            countChunk(ByteBlockSource.of(slice), !chunk.hasRemaining(), blockLength, chunkHistogram);
+            merge(histogram, chunkHistogram);
+            Arrays.fill(chunkHistogram, 0);
+        }
+        return histogram;
+    }
+
+    private static void countChunk(MappedInput input, long from, long to, int blockLength, int[] histogram) {
+        countChunk(input.blocks(from, to), to == input.size(), blockLength, histogram);
+    }
+
+    /**
+     * Counts blocks of a chunk which starts block aligned
+     * @param last if true, trailing bits which do not fill a whole block are counted as the last block
+     */
+    private static void countChunk(ByteBlockSource chunk, boolean last, int blockLength, int[] histogram) {
+
+        int mask = (1 << blockLength) - 1;
+
+        long acc = 0;
+        int bits = 0;
+        //Chunk of mapped file can span two segments
+        for (ByteBuffer bytes = next(chunk); bytes != null; bytes = next(chunk)) {
+            int from = bytes.position();
+            //Blocks of whole bytes are counted straight from the bytes
+            if (blockLength == 8) {
+                for (int i = from; i < bytes.limit(); ++i)
+                    histogram[bytes.get(i) & 0xFF]++;
+                from = bytes.limit();
+            }
+            else if (blockLength == 16 && bits == 0) {
+                for (; from + 1 < bytes.limit(); from += 2)
+                    histogram[(bytes.get(from) & 0xFF) << 8 | bytes.get(from + 1) & 0xFF]++;
+            }
+            else if (bits == 0 && bytes.limit() - from >= 8) {
+                long end = countWords(bytes, from, blockLength, histogram);
+                from = (int) (end >>> 3);
+                //Rest of the byte words stopped in goes through the accumulator
+                int used = (int) end & 7;
+                if (used != 0) {
+                    acc = bytes.get(from++) & (0xFF >>> used);
+                    bits = 8 - used;
+                    while (bits >= blockLength) {
+                        bits -= blockLength;
+                        histogram[(int) (acc >>> bits) & mask]++;
+                    }
+                }
+            }
+            for (int i = from; i < bytes.limit(); ++i) {
+                acc = (acc << 8) | (bytes.get(i) & 0xFF);
+                bits += 8;
+                while (bits >= blockLength) {
+                    bits -= blockLength;
+                    histogram[(int) (acc >>> bits) & mask]++;
+                }
+            }
+        }
+
+        if (last && bits > 0)
+            histogram[(int) acc & ((1 << bits) - 1)]++;
+    }
+
+    /**
+     * Counts whole blocks from byte from on, several blocks are extracted from every 8 bytes loaded at once.
+     * Blocks are counted while the next load fits before bytes' limit
+     * @return bit position in bytes where counting stopped, at a block boundary
+     */
+    private static long countWords(ByteBuffer bytes, int from, int blockLength, int[] histogram) {
+        ByteBuffer words = bytes.duplicate().order(ByteOrder.BIG_ENDIAN);
+        int perWord = blocksPerWord(blockLength);
+        int step = perWord * blockLength;
+        int shift = 64 - blockLength;
+        long position = (long) from * 8;
+        long end = (long) (bytes.limit() - 8) * 8;
+        while (position <= end) {
+            long word = words.getLong((int) (position >>> 3)) << (position & 7);
+            for (int i = 0; i < perWord; ++i) {
+                histogram[(int) (word >>> shift)]++;
+                word <<= blockLength;
+            }
+            position += step;
+        }
+        return position;
+    }
+
+    private static ByteBuffer next(ByteBlockSource source) {
+        try {
+            return source.next();
+        }
+        catch (IOException e) {
+            //Memory mapped and in memory sources don't do I/O
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void merge(long[] into, int[] histogram) {
+        for (int i = 0; i < histogram.length; ++i)
+            into[i] += histogram[i];
+    }
+
+    private static void merge(long[] into, long[] histogram) {
+        for (int i = 0; i < histogram.length; ++i)
+            into[i] += histogram[i];
+    }
+
+    /**
+     * Counts chunks [fromChunk, toChunk) splitting the range in halves until one chunk is left.
+     * Chunk i starts at i * stride, chunks cover the whole input if stride is the chunk size
+     */
+    private static final class CountTask extends RecursiveTask<long[]> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final MappedInput input;
+        private final long stride;
+        private final long chunkSize;
+        private final int blockLength;
+        private final long fromChunk;
+        private final long toChunk;
+
+        CountTask(MappedInput input, long stride, long chunkSize, int blockLength, long fromChunk, long toChunk) {
+            this.input = input;
+            this.stride = stride;
+            this.chunkSize = chunkSize;
+            this.blockLength = blockLength;
+            this.fromChunk = fromChunk;
+            this.toChunk = toChunk;
+        }
+
+        @Override
+        protected long[] compute() {
+            if (toChunk - fromChunk == 1) {
+                int[] histogram = new int[1 << blockLength];
+                long from = fromChunk * stride;
+                countChunk(input, from, Math.min(input.size(), from + chunkSize), blockLength, histogram);
+                long[] result = new long[histogram.length];
+                merge(result, histogram);
+                return result;
+            }
+
+            long middle = (fromChunk + toChunk) >>> 1;
+            CountTask left = new CountTask(input, stride, chunkSize, blockLength, fromChunk, middle);
+            CountTask right = new CountTask(input, stride, chunkSize, blockLength, middle, toChunk);
+            left.fork();
+            long[] result = right.compute();
+            merge(result, left.join());
+            return result;
+        }
+    }
+}
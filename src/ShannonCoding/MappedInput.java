@@ -0,0 +1,96 @@
+package ShannonCoding;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * @author Lukas
+ */
+
+/**
+ * Read only memory mapping of a whole file.
+ *
+ * One MappedByteBuffer can't be larger than 2GB, so the file is mapped in segments and every
+ * position is a long offset from the start of the file. Same mapping is shared by every pass over the file.
+ */
+public class MappedInput implements Closeable {
+
+    static final long SEGMENT_SIZE = 1L << 30;
+
+    private final FileChannel channel;
+    private final long size;
+    private final MappedByteBuffer[] segments;
+
+    public MappedInput(String filename) throws IOException {
+        this.channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ);
+        try {
+            this.size = channel.size();
+            this.segments = new MappedByteBuffer[(int) ((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+            for (int i = 0; i < segments.length; ++i) {
+                long from = i * SEGMENT_SIZE;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(SEGMENT_SIZE, size - from));
+            }
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * @return bytes from position up to the end of its segment or to, whichever comes first
+     */
+    ByteBuffer slice(long position, long to) {
+        ByteBuffer segment = segments[(int) (position / SEGMENT_SIZE)].duplicate();
+        int from = (int) (position % SEGMENT_SIZE);
+        segment.position(from);
+        segment.limit((int) Math.min(segment.capacity(), from + (to - position)));
+        return segment.slice();
+    }
+
+    /**
+     * @return reader of bytes [from, to)
+     */
+    public BufferedBitReader reader(long from, long to) {
+        return new BufferedBitReader(blocks(from, to));
+    }
+
+    public BufferedBitReader reader() {
+        return reader(0, size);
+    }
+
+    /**
+     * @return bytes [from, to) as one slice per segment
+     */
+    ByteBlockSource blocks(long from, long to) {
+        return new ByteBlockSource() {
+            private long position = from;
+
+            @Override
+            public ByteBuffer next() {
+                if (position >= to)
+                    return null;
+                ByteBuffer slice = slice(position, to);
+                position += slice.remaining();
+                return slice;
+            }
+
+            @Override
+            public void close() { }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
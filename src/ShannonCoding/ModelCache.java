@@ -0,0 +1,81 @@
+package ShannonCoding;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * @author Lukas
+ */
+
+/**
+ * Models known to decoders of data which refers to a model by its id, thread safe.
+ *
+ * Models are kept in memory once used. Cache with a directory also looks up models it doesn't know yet in
+ * files named by their id, see fileName, so a directory of saved models can be used as it is.
+ */
+public class ModelCache {
+
+    //Directory of saved models, null if cache is only in memory
+    private final Path directory;
+
+    private final ConcurrentMap<Long, ShannonModel> models = new ConcurrentHashMap<>();
+
+    public ModelCache() {
+        this(null);
+    }
+
+    public ModelCache(Path directory) {
+        this.directory = directory;
+    }
+
+    public void put(ShannonModel model) {
+        models.put(model.getId(), model);
+    }
+
+    /**
+     * @return model of id, null if it is neither in memory nor in the directory
+     * @throws IOException if model file exists, but can't be read or its content has different id
+     */
+    public ShannonModel get(long id) throws IOException {
+        ShannonModel model = models.get(id);
+        if (model != null || directory == null)
+            return model;
+
+        Path file = directory.resolve(fileName(id));
+        if (!Files.isRegularFile(file))
+            return null;
+        model = ShannonModel.load(file.toString());
+        if (model.getId() != id)
+            throw new IOException("Model file " + file + " has id " + toHex(model.getId()));
+        ShannonModel known = models.putIfAbsent(id, model);
+        return known != null ? known : model;
+    }
+
+    /**
+     * Saves model into the directory and keeps it in memory
+     * @return file model was saved to
+     */
+    public Path save(ShannonModel model) throws IOException {
+        if (directory == null)
+            throw new IllegalStateException("Cache has no directory");
+        Files.createDirectories(directory);
+        Path file = directory.resolve(fileName(model.getId()));
+        model.save(file.toString());
+        put(model);
+        return file;
+    }
+
+    /**
+     * @return name of the file model of id is saved in
+     */
+    public static String fileName(long id) {
+        return toHex(id) + ".model";
+    }
+
+    static String toHex(long id) {
+        return String.format("%016x", id);
+    }
+}
@@ -0,0 +1,145 @@
+package ShannonCoding;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * @author Lukas
+ */
+
+/**
+ * Input stream which reads the underlying stream ahead on its own thread, so the caller codes bytes already read
+ * while the device reads the next ones.
+ *
+ * Reader thread fills up to bufferCount buffers in advance and waits once all of them are full. Buffers the
+ * caller has read return to the pool, so no more buffers are ever allocated. Failure of the reader thread is
+ * thrown once the bytes read before it are consumed.
+ */
+final class PrefetchInputStream extends InputStream {
+
+    //Queued after the last buffer
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final InputStream in;
+    private final BlockingQueue<ByteBuffer> free;
+    private final BlockingQueue<ByteBuffer> full;
+    private final Thread reader;
+
+    private volatile IOException failure;
+
+    //Buffer being read by the caller, END once the stream ends
+    private ByteBuffer buffer = ByteBuffer.allocate(0);
+    private boolean closed = false;
+
+    PrefetchInputStream(InputStream in, int bufferSize, int bufferCount) {
+        this.in = in;
+        this.free = new ArrayBlockingQueue<>(bufferCount);
+        this.full = new ArrayBlockingQueue<>(bufferCount + 1);
+        for (int i = 0; i < bufferCount; ++i)
+            free.add(ByteBuffer.allocate(bufferSize));
+
+        this.reader = new Thread(this::fill, "shannon-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!next())
+            return -1;
+        return buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off)
+            throw new IndexOutOfBoundsException();
+        if (len == 0)
+            return 0;
+        if (!next())
+            return -1;
+        int count = Math.min(len, buffer.remaining());
+        buffer.get(b, off, count);
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        reader.interrupt();
+        in.close();
+    }
+
+    /**
+     * Takes the next read buffer once the current one is consumed
+     * @return false at the end of stream
+     */
+    private boolean next() throws IOException {
+        if (closed)
+            throw new IOException("Stream is closed");
+        while (!buffer.hasRemaining()) {
+            if (buffer == END) {
+                IOException failure = this.failure;
+                if (failure != null)
+                    throw new IOException("Reading failed", failure);
+                return false;
+            }
+            if (buffer.capacity() > 0)
+                free.add(buffer);
+            try {
+                buffer = full.take();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reader thread, fills free buffers in order until the end of stream
+     */
+    private void fill() {
+        try {
+            while (true) {
+                ByteBuffer next = free.take();
+                next.clear();
+                boolean end = false;
+                while (next.hasRemaining()) {
+                    int count = in.read(next.array(), next.position(), next.remaining());
+                    if (count < 0) {
+                        end = true;
+                        break;
+                    }
+                    next.position(next.position() + count);
+                }
+                next.flip();
+                if (next.hasRemaining())
+                    full.put(next);
+                if (end) {
+                    full.put(END);
+                    return;
+                }
+            }
+        }
+        catch (IOException e) {
+            failure = e;
+            full.offer(END);
+        }
+        catch (InterruptedException e) {
+            //Stream was closed
+        }
+    }
+}
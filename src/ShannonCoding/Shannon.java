@@ -1,14 +1,15 @@
 package ShannonCoding;
 
-import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBiMap;
-
-import java.io.BufferedWriter;
-import java.io.FileNotFoundException;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.math.BigInteger;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * @author Lukas
@@ -17,14 +18,30 @@ import java.util.*;
 /**
  * Class implementing encoding and decoding of Shannon coding
  * https://en.wikipedia.org/wiki/Shannon_coding
+ *
+ * Instance keeps state of the file being coded, so it is used by one thread at a time. Code shared by
+ * threads is a ShannonModel.
  */
 public class Shannon {
 
+    //Block length which makes encode pick block length of every input, see BlockLengthSelector
+    public static final int AUTO_BLOCK_LENGTH = 0;
+
+    //Buffers of every pipelined read or write stage, and their size
+    private static final int PIPELINE_BUFFERS = 4;
+    private static final int PIPELINE_BUFFER_SIZE = 1 << 20;
+
     //Number of bits which will be read from dataFile at once and used as one word
     private int blockLength;
 
-    //Number of blocks in dataFile
-    private int fileBlockCount = 0;
+    //Picks block length of every encoded input, null if blockLength is fixed
+    private BlockLengthSelector blockLengthSelector;
+
+    //Whether frequencies are counted and frames are coded on all cores
+    private boolean parallel = true;
+
+    //Whether files are read and written on their own threads while frames are coded, see setPipelined
+    private boolean pipelined = false;
 
     //Length of last block in bits, used if last block left in file is shorter than usual block length
     private int lastBlockLength;
@@ -33,331 +50,851 @@ public class Shannon {
     private String dataFile;
     private String encodedFile;
 
+    //Mapping of dataFile shared by frequency and encoding passes
+    private MappedInput dataInput;
+
     /*File which holds integer representation of the block, it's probability, it's code's length,
-    probability sum up to that block and block's codeword
+    probability sum up to that block and block's codeword. Not written if null
      */
-    private String codeDataFile;
+    private String codeDataFile = "codeData.txt";
+
+    //Frequencies of blocks indexed by block value
+    private long[] frequencies;
+
+    private CodeBook codeBook;
 
-    private LinkedHashMap<Integer, Integer> frequencies;
+    //Bytes of dataFile coded into one frame, rounded down to block alignment
+    private int frameSize = 4 << 20;
 
-    private ArrayList<RationalFraction> probabilities = new ArrayList<>();
+    //Whether every frame is coded into several streams which are decoded side by side
+    private boolean interleaved = false;
 
-    private BiMap<Integer, String> encodedAlphabet;
+    //Whether frames are followed by an index of their offsets, see ShannonRangeReader
+    private boolean indexed = false;
 
-    //Bit count of encoded blocks
-    private BigInteger encodedBlockBitCount = BigInteger.ZERO;
+    //Longest codeWord in bits
+    private int maxCodeLength = DecodeTable.MAX_CODE_LENGTH;
+
+    //Bytes of dataFile the frequencies are counted of, 0 to count the whole file
+    private long sampleSize = 0;
+
+    private CodecListener listener = CodecListener.NONE;
+
+    //Models which headers of decoded data can refer to, null if none
+    private ModelCache models;
 
     public Shannon() { }
 
+    /**
+     * @param blockLength block length in bits, 1-16, or AUTO_BLOCK_LENGTH
+     */
     public Shannon(int blockLength) {
         this.blockLength = blockLength;
         this.lastBlockLength = blockLength;
+        if (blockLength == AUTO_BLOCK_LENGTH)
+            this.blockLengthSelector = new BlockLengthSelector();
     }
 
-    public void encode(String dataFile, String encodedFile){
-        this.dataFile = dataFile;
-        this.encodedFile = encodedFile;
-        this.codeDataFile = "codeData.txt";
-            try
-            {
-                long startTime = System.currentTimeMillis();
-                System.out.println("CALCULATING FREQUENCIES...");
-                getFrequencies();
-                System.out.println("FINISHED CALCULATING FREQUENCIES, TIME ELAPSED: " + (System.currentTimeMillis() - startTime) + " milis");
-
-                startTime = System.currentTimeMillis();
-                System.out.println("CALCULATING PROBABILITIES...");
-                for(Map.Entry<Integer, Integer> freq : this.frequencies.entrySet()){
-                    probabilities.add(new RationalFraction(freq.getKey(), freq.getValue(), fileBlockCount));
-                }
-                System.out.println("FINISHED CALCULATING PROBABILITIES, TIME ELAPSED: " + (System.currentTimeMillis() - startTime) + " milis");
-
-                startTime = System.currentTimeMillis();
-                System.out.println("SORTING PROBABILITIES...");
-                Collections.sort(probabilities);
-                System.out.println("FINISHED SORTING PROBABILITIES, TIME ELAPSED: " + (System.currentTimeMillis() - startTime) + " milis");
-
-                startTime = System.currentTimeMillis();
-                System.out.println("CALCULATING SYMBOL ENCODING...");
-                getSymbolCoding();
-                System.out.println("FINISHED CALCULATING SYMBOL ENCODING, TIME ELAPSED: " + (System.currentTimeMillis() - startTime) + " milis");
-
-                startTime = System.currentTimeMillis();
-                System.out.println("ENCODING FILE...");
-                writeEncodingToFile();
-                System.out.println("FINISHED ENCODING FILE, TIME ELAPSED: " + (System.currentTimeMillis() - startTime) + " milis");
-            }
-            catch (FileNotFoundException e) {
-                e.printStackTrace();
-            }
+    /**
+     * @return block length in bits of the last encoded or decoded data
+     */
+    public int getBlockLength() {
+        return blockLength;
     }
 
-    private void writeEncodingToFile(){
+    /**
+     * Weighs coding speed against output size when block length is picked automatically
+     * @param speedWeight 0 picks the smallest output, 1 the fastest coding
+     */
+    public void setSpeedWeight(double speedWeight) {
+        if (blockLengthSelector == null)
+            throw new IllegalStateException("Block length is not picked automatically");
+        blockLengthSelector.setSpeedWeight(speedWeight);
+    }
 
-        try {
+    /**
+     * @param parallel whether frequencies are counted and frames are coded on all cores
+     */
+    public void setParallel(boolean parallel) {
+        this.parallel = parallel;
+    }
 
-            BitWriter bw = new BitWriter(this.encodedFile);
+    /**
+     * Reads and writes files on their own threads, connected to coding by bounded queues of reused buffers,
+     * so coding doesn't wait for the device and the device doesn't wait for coding. Pays off where reads and
+     * writes have latency, like spinning disks and network filesystems; counting frequencies still reads
+     * the mapped dataFile. Pipelined decode codes frames on one thread.
+     * @param pipelined whether encode and decode of files are pipelined
+     */
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+    }
 
-            writeHeader(bw);
+    /**
+     * @param frameSize bytes of input coded into one independent frame, 1-16 MB are reasonable
+     */
+    public void setFrameSize(int frameSize) {
+        if (frameSize < 1)
+            throw new IllegalArgumentException("Frame size must be positive");
+        this.frameSize = frameSize;
+    }
 
-            BitReader br = new BitReader(this.dataFile);
-            BigInteger dataFileBitCount = new BigInteger(Integer.toString(br.length()*8));
-            while(dataFileBitCount.compareTo(BigInteger.ZERO) > 0){
+    /**
+     * Limits codeWords of rare blocks, codes of at most 11 bits are decoded by a single table lookup
+     * @param maxCodeLength longest codeWord in bits, at most 32, must fit every block of the input
+     */
+    public void setMaxCodeLength(int maxCodeLength) {
+        if (maxCodeLength < 1 || maxCodeLength > DecodeTable.MAX_CODE_LENGTH)
+            throw new IllegalArgumentException("CodeWord length limit must be between 1 and "
+                    + DecodeTable.MAX_CODE_LENGTH);
+        this.maxCodeLength = maxCodeLength;
+    }
 
-                if(dataFileBitCount.compareTo(BigInteger.valueOf(blockLength)) < 0){
-                    int block = br.readBits(dataFileBitCount.intValue());
-                    String binaryRepr = this.encodedAlphabet.get(block);
-                    if(binaryRepr != null){
-                        bw.writeBits(Integer.parseInt(binaryRepr, 2), binaryRepr.length());
-                    }
-                    break;
-                }
+    /**
+     * Builds the code of a sample of the file instead of the whole file, so encoding a file reads it about once.
+     * Only files are sampled, data encoded in memory is always counted whole.
+     * Blocks missing from the sample still get codeWords, longer than they would get otherwise.
+     * Block length must not be larger than the codeWord length limit then
+     * @param sampleSize bytes sampled evenly over the file, 0 to count the whole file
+     */
+    public void setSampleSize(long sampleSize) {
+        if (sampleSize < 0)
+            throw new IllegalArgumentException("Sample size must not be negative");
+        this.sampleSize = sampleSize;
+    }
 
-                int block = br.readBits(blockLength);
-                String binaryRepr = this.encodedAlphabet.get(block);
-                if(binaryRepr != null){
-                    bw.writeBits(Integer.parseInt(binaryRepr, 2), binaryRepr.length());
-                }
+    /**
+     * Codes every frame into four streams, which one thread decodes side by side. Pays off for codes whose
+     * codeWords mostly fit the decoder's first lookup level, off by default
+     * @param interleaved whether frames are interleaved, output is a few bytes per frame longer
+     */
+    public void setInterleaved(boolean interleaved) {
+        this.interleaved = interleaved;
+    }
 
-                dataFileBitCount = dataFileBitCount.subtract(new BigInteger(Integer.toString(blockLength)));
-            }
-            bw.flush();
+    /**
+     * Ends encoded data with an index of every frame's original and encoded offset, so ShannonRangeReader
+     * decodes a byte range starting at the nearest frame instead of finding frames one after another.
+     * Frames are the sync points, so frame size sets how much is decoded around a range
+     * @param indexed whether index is written, output is 16 bytes per frame longer
+     */
+    public void setIndexed(boolean indexed) {
+        this.indexed = indexed;
+    }
+
+    /**
+     * @param listener receives phase timings and statistics of every encode and decode
+     */
+    public void setListener(CodecListener listener) {
+        this.listener = listener == null ? CodecListener.NONE : listener;
+    }
+
+    /**
+     * @param models models which headers of decoded data can refer to, null if none
+     */
+    public void setModelCache(ModelCache models) {
+        this.models = models;
+    }
+
+    /**
+     * @param codeDataFile file to which encode writes the code of every block, null to skip it
+     */
+    public void setCodeDataFile(String codeDataFile) {
+        this.codeDataFile = codeDataFile;
+    }
+
+    public void encode(String dataFile, String encodedFile) throws IOException {
+        this.dataFile = dataFile;
+        this.encodedFile = encodedFile;
+
+        try (MappedInput dataInput = new MappedInput(dataFile)) {
+            this.dataInput = dataInput;
+            encode();
         }
-        catch (FileNotFoundException e1) {
-            e1.printStackTrace();
+        finally {
+            this.dataInput = null;
         }
     }
 
     /**
-     * Writes encoding header to file
-     * [4 bits]: bit block length -1 (max length is 16, but it requires 5 bits while we can fit 16-1 = 15 to 4 bits)
-     * [4 bits]: last bit block length -1 (same as before, can have value from 2 to 16)
-     * [16 bits]: number of dictionary' blocks -1. Max value is 2^16 when block length is 16
-     *
-     * [8 bits] : number of trailing 0 which BitWriter appends to the end of file. E.g if 65 bits are written to file,
-     *          then BitWriter will write 9 bytes by appending 7 zeroes to the end of file.
-     *          These zeroes will have to be ignored or else they will get decoded if some block has codeWord of 0, 00, etc...
-     *
-     * [n bytes] - 'dictionary'. It's number of blocks was specified before.
-     *
-     *            Dictionary block: [bit block length bits]: integer value of bit block
-     *                              [8 bits]: length x of bit block's codeWord
-     *                              [x bits] bit block's codeword
+     * Encodes dataFile with a pre-trained model in one pass, header refers to the model instead of holding
+     * the dictionary, so decoder needs the model, see setModelCache
+     * @throws IllegalArgumentException if dataFile has a block which is not in the model
      */
-    private void writeHeader(BitWriter bw) throws FileNotFoundException {
+    public void encode(String dataFile, String encodedFile, ShannonModel model) throws IOException {
+        this.blockLength = model.getBlockLength();
+        CodecStats stats = new CodecStats(true);
+
+        long start = startPhase(CodecPhase.ENCODING);
+        long length;
+        long size;
+        try (MappedInput dataInput = new MappedInput(dataFile);
+             BufferedBitWriter bw = new BufferedBitWriter(encodedFile)) {
+            FrameFormat.writeModelHeader(bw, blockLength, model.getId());
+            writeFrames(bw, model.getCodeBook(), dataInput.size(), dataInput::reader);
+            bw.alignToByte();
+            length = bw.getBitPosition() / 8;
+            size = dataInput.size();
+        }
+        finishPhase(CodecPhase.ENCODING, start, stats);
 
-        //block length - 1, 4 bits
-        bw.writeBits(blockLength - 1, 4);
-        //last block length -1, 4 bits
-        bw.writeBits(lastBlockLength - 1, 4);
+        stats.setBytes(size, length);
+        stats.setBlocks((size * 8 + blockLength - 1) / blockLength);
+        listener.finished(stats);
+    }
 
-        int dictionaryLength = this.encodedAlphabet.size();
-        //'dictionary' length -1, 16 bits
-        bw.writeBits(dictionaryLength - 1, 16);
+    /**
+     * Encodes data in memory into the framed format, same as encode(String, String) writes to a file
+     * @return encoded data
+     */
+    public byte[] encode(byte[] data) throws IOException {
+        long maxLength = maxEncodedLength(data.length);
+        if (maxLength > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("Data is too long to be encoded into an array");
+        ByteBuffer encoded = ByteBuffer.allocate((int) maxLength);
+        int length = encode(ByteBuffer.wrap(data), encoded);
+        return Arrays.copyOf(encoded.array(), length);
+    }
 
+    /**
+     * Encodes bytes between src's position and limit into dst starting at its position.
+     * Heap and direct buffers are read and written in place, src's position is moved to its limit and dst's
+     * position past the encoded bytes
+     * @return number of encoded bytes
+     * @throws IOException if dst has less than needed space left, maxEncodedLength is always enough
+     */
+    public int encode(ByteBuffer src, ByteBuffer dst) throws IOException {
+        CodecStats stats = new CodecStats(true);
+        ByteBuffer data = src.slice();
+
+        long start;
+        if (blockLengthSelector != null) {
+            start = startPhase(CodecPhase.BLOCK_LENGTH);
+            blockLengthSelector.setMaxCodeLength(maxCodeLength);
+            blockLength = blockLengthSelector.select(data);
+            finishPhase(CodecPhase.BLOCK_LENGTH, start, stats);
+        }
+        if (blockLength < 1 || blockLength > 16)
+            throw new IllegalArgumentException("Block length must be between 1 and 16");
+
+        start = startPhase(CodecPhase.FREQUENCIES);
+        long[] frequencies = FrequencyCounter.count(data, blockLength);
+        finishPhase(CodecPhase.FREQUENCIES, start, stats);
+
+        start = startPhase(CodecPhase.SYMBOL_CODING);
+        CodeBook codeBook = CodeBook.of(frequencies, blockLength, maxCodeLength);
+        finishPhase(CodecPhase.SYMBOL_CODING, start, stats);
+
+        start = startPhase(CodecPhase.ENCODING);
+        ByteBuffer target = dst.duplicate();
+        try (BufferedBitWriter bw = new BufferedBitWriter(target)) {
+            CodeBook frameCodeBook = expands(codeBook) ? null : codeBook;
+            FrameFormat.writeHeader(bw, blockLength, frameCodeBook);
+            writeFrames(bw, frameCodeBook, data.remaining(),
+                    (from, to) -> new BufferedBitReader(slice(data, from, to)));
+        }
+        finishPhase(CodecPhase.ENCODING, start, stats);
 
-        //Adding reserved header lengths to encodedBitCount
+        int length = target.position() - dst.position();
+        dst.position(target.position());
+        src.position(src.limit());
 
-        //bit block length, last bit block length, dictionary block length
-        encodedBlockBitCount = encodedBlockBitCount.add(BigInteger.valueOf(4 + 4 + 16));
+        stats.setBytes(data.remaining(), length);
+        stats.setCodeBook(codeBook);
+        stats.setBlocks((data.remaining() * 8L + blockLength - 1) / blockLength);
+        listener.finished(stats);
+        return length;
+    }
 
-        for(Map.Entry<Integer, String> entry : this.encodedAlphabet.entrySet()) {
-            encodedBlockBitCount = encodedBlockBitCount.add(BigInteger.valueOf(blockLength));
-            encodedBlockBitCount = encodedBlockBitCount.add(BigInteger.valueOf(8));
-            encodedBlockBitCount = encodedBlockBitCount.add(BigInteger.valueOf(entry.getValue().length()));
+    /**
+     * @return most bytes which encoding of srcLength bytes can take with current block length and frame size,
+     *          with any block length if it is picked automatically
+     */
+    public long maxEncodedLength(long srcLength) {
+        if (blockLengthSelector != null) {
+            long maxLength = 0;
+            for (int blockLength = 1; blockLength <= 16; ++blockLength)
+                maxLength = Math.max(maxLength, maxEncodedLength(srcLength, blockLength));
+            return maxLength;
         }
+        if (blockLength < 1 || blockLength > 16)
+            throw new IllegalArgumentException("Block length must be between 1 and 16");
+        return maxEncodedLength(srcLength, blockLength);
+    }
 
-        /*Calculating number of 0 which bitwriter automatically adds at the end of file if file's bit count
-         can not be properly divided into bytes */
-        int count = 0;
-        while(!encodedBlockBitCount.mod(BigInteger.valueOf(8)).equals(BigInteger.ZERO)){
-            encodedBlockBitCount = encodedBlockBitCount.add(BigInteger.ONE);
-            count++;
+    private long maxEncodedLength(long srcLength, int blockLength) {
+
+        long frameSize = Math.max(FrequencyCounter.alignment(blockLength),
+                this.frameSize - this.frameSize % FrequencyCounter.alignment(blockLength));
+        long frames = (srcLength + frameSize - 1) / frameSize;
+        //Last block of every frame can be shorter
+        long blocks = (srcLength * 8 + blockLength - 1) / blockLength + frames;
+        long dictionaryBlocks = Math.min(1L << blockLength, blocks);
+
+        //Shannon code is less than 1 bit per block longer than the entropy, which is at most block length.
+        //No codeWord is longer than log2 of block count, so the length limit changes the code only past that
+        long dataBits = blocks * (blockLength + 1);
+        if (maxCodeLength < 64 - Long.numberOfLeadingZeros(blocks))
+            dataBits = blocks * Math.max(blockLength + 1, maxCodeLength);
+        long frameOverhead = FrameFormat.FRAME_HEADER_LENGTH + 1;
+        if (interleaved)
+            frameOverhead += 1 + FrameFormat.JUMP_TABLE_LENGTH + FrameFormat.INTERLEAVED_STREAMS;
+        long indexLength = indexed ? FrameFormat.FRAME_HEADER_LENGTH + FrameFormat.indexLength(0) + frames * 16 : 0;
+        return FrameFormat.maxHeaderLength(dictionaryBlocks, blockLength) + frames * frameOverhead + (dataBits + 7) / 8
+                + indexLength;
+    }
+
+    /**
+     * @return bytes [from, to) of buffer's content, from buffer's position on
+     */
+    private static ByteBuffer slice(ByteBuffer buffer, long from, long to) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(buffer.position() + (int) from);
+        slice.limit(buffer.position() + (int) to);
+        return slice.slice();
+    }
+
+    private void encode() throws IOException {
+        CodecStats stats = new CodecStats(true);
+
+        long start;
+        if (blockLengthSelector != null) {
+            start = startPhase(CodecPhase.BLOCK_LENGTH);
+            blockLengthSelector.setMaxCodeLength(maxCodeLength);
+            this.blockLength = blockLengthSelector.select(dataInput, parallel);
+            this.lastBlockLength = blockLength;
+            finishPhase(CodecPhase.BLOCK_LENGTH, start, stats);
         }
-        //Trailing zeroes, 8 bits
-        bw.writeBits(count, 8);
 
-        for(Map.Entry<Integer, String> entry : this.encodedAlphabet.entrySet()){
-            //Block integer value, blockLength bits
-            bw.writeBits(entry.getKey(), blockLength);
+        start = startPhase(CodecPhase.FREQUENCIES);
+        getFrequencies();
+        finishPhase(CodecPhase.FREQUENCIES, start, stats);
 
-            //Block codeWords length, 8 bits
-            bw.writeBits(entry.getValue().length(), 8);
-            //CodeWord, it's length bits
-            bw.writeBits(Integer.parseInt(entry.getValue(), 2), entry.getValue().length());
+        start = startPhase(CodecPhase.SYMBOL_CODING);
+        getSymbolCoding();
+        finishPhase(CodecPhase.SYMBOL_CODING, start, stats);
+
+        start = startPhase(CodecPhase.ENCODING);
+        long length = writeEncodingToFile();
+        finishPhase(CodecPhase.ENCODING, start, stats);
+
+        stats.setBytes(dataInput.size(), length);
+        stats.setCodeBook(codeBook);
+        //Code book of a sample counts the blocks of the sample only
+        stats.setBlocks((dataInput.size() * 8 + blockLength - 1) / blockLength);
+        stats.setSampled(sampled());
+        listener.finished(stats);
+    }
+
+    /**
+     * @return number of bytes written
+     */
+    private long writeEncodingToFile() throws IOException {
+
+        if (pipelined)
+            return writePipelined();
+
+        try (BufferedBitWriter bw = new BufferedBitWriter(this.encodedFile)) {
+            CodeBook frameCodeBook = expands(codeBook) ? null : codeBook;
+            FrameFormat.writeHeader(bw, blockLength, frameCodeBook);
+            writeFrames(bw, frameCodeBook, dataInput.size(), dataInput::reader);
+            bw.alignToByte();
+            return bw.getBitPosition() / 8;
         }
     }
 
     /**
-     * Gets frequencies of blocks from dataFile
-     * @throws FileNotFoundException if dataFile not found
+     * Same as writeEncodingToFile, with dataFile read ahead and encodedFile written behind on their own threads
+     * @return number of bytes written
      */
-    private void getFrequencies() throws FileNotFoundException {
+    private long writePipelined() throws IOException {
+        try (InputStream in = new PrefetchInputStream(new FileInputStream(dataFile), PIPELINE_BUFFER_SIZE,
+                PIPELINE_BUFFERS);
+             BufferedBitWriter bw = new BufferedBitWriter(new AsyncOutputStream(new FileOutputStream(encodedFile),
+                     PIPELINE_BUFFER_SIZE, PIPELINE_BUFFERS))) {
+            CodeBook frameCodeBook = expands(codeBook) ? null : codeBook;
+            FrameFormat.writeHeader(bw, blockLength, frameCodeBook);
+            writeFrames(bw, frameCodeBook, dataInput.size(), sequentialFrames(in, maxPendingFrames()));
+            bw.alignToByte();
+            return bw.getBitPosition() / 8;
+        }
+    }
 
-        this.frequencies = new LinkedHashMap<>();
-        BitReader br = new BitReader(dataFile);
-        int fileBitCount = br.length()*8;
+    /**
+     * Frames are read into a ring of bufferCount buffers, so a frame's buffer is read into again bufferCount
+     * frames later. No more than bufferCount frames can be in use at once, see maxPendingFrames
+     * @return input of frames read from in one after another, reader of the last read frame can be asked again
+     */
+    private static FrameInput sequentialFrames(InputStream in, int bufferCount) {
+        return new FrameInput() {
+            private final byte[][] buffers = new byte[bufferCount][];
+            private long frames = 0;
+            private long from = -1;
+            private byte[] frame;
+            private int length;
+
+            @Override
+            public BufferedBitReader reader(long from, long to) throws IOException {
+                if (from != this.from) {
+                    int slot = (int) (frames++ % bufferCount);
+                    length = (int) (to - from);
+                    //Frames are of the same size except the last one, so every buffer is allocated once
+                    if (buffers[slot] == null || buffers[slot].length < length)
+                        buffers[slot] = new byte[length];
+                    frame = buffers[slot];
+                    for (int read = 0; read < length; ) {
+                        int count = in.read(frame, read, length - read);
+                        if (count < 0)
+                            throw new EOFException("Data file is shorter than it was");
+                        read += count;
+                    }
+                    this.from = from;
+                }
+                return new BufferedBitReader(ByteBuffer.wrap(frame, 0, length));
+            }
+        };
+    }
 
-        if(fileBitCount <= blockLength){
-            throw new IllegalArgumentException("Block length is bigger than or equal to total file bit count !");
+    private long startPhase(CodecPhase phase) {
+        listener.phaseStarted(phase);
+        return System.nanoTime();
+    }
+
+    private void finishPhase(CodecPhase phase, long start, CodecStats stats) {
+        long nanos = System.nanoTime() - start;
+        stats.addPhaseNanos(phase, nanos);
+        listener.phaseFinished(phase, nanos);
+    }
+
+    /**
+     * @return whether codeWords of codeBook are on average at least as long as blocks, so every frame would be
+     *          stored anyway and the dictionary is not worth writing
+     */
+    private static boolean expands(CodeBook codeBook) {
+        return codeBook.averageCodeLength() >= codeBook.getBlockLength();
+    }
+
+    /**
+     * Codes size bytes of input into frames which share codeBook's dictionary, frames which coding doesn't make
+     * shorter are stored as they are
+     * @param codeBook null to store every frame without coding it
+     */
+    private void writeFrames(BufferedBitWriter bw, CodeBook codeBook, long size, FrameInput input)
+            throws IOException {
+        long frameSize = this.frameSize - this.frameSize % FrequencyCounter.alignment(blockLength);
+        if (frameSize == 0)
+            frameSize = FrequencyCounter.alignment(blockLength);
+
+        long frames = (size + frameSize - 1) / frameSize;
+        if (indexed && FrameFormat.indexLength(0) + frames * 16 > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Too many frames to index, frame size is too small");
+        //Byte offsets of written frames from the start of header
+        long[] frameOffsets = new long[indexed ? (int) frames : 0];
+        int written = 0;
+
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        //Frames which are being encoded, written in order as they finish
+        ArrayDeque<Future<FrameFormat.EncodedFrame>> pending = new ArrayDeque<>();
+        int maxPending = maxPendingFrames();
+
+        for (long from = 0; from < size; from += frameSize) {
+            final long frameFrom = from;
+            final long frameTo = Math.min(size, from + frameSize);
+            final int frameLength = (int) (frameTo - frameFrom);
+            //Readers are made here in frame order, input can be read one frame after another
+            final BufferedBitReader reader = input.reader(frameFrom, frameTo);
+            final BufferedBitReader raw = codeBook != null ? input.reader(frameFrom, frameTo) : null;
+            Callable<FrameFormat.EncodedFrame> frame = () -> {
+                if (codeBook == null)
+                    return FrameFormat.storeFrame(reader, frameLength);
+                FrameFormat.EncodedFrame encoded = FrameFormat.encodeFrame(codeBook, false, interleaved, reader,
+                        frameLength);
+                return FrameFormat.storeIfLonger(encoded, raw);
+            };
+
+            if (parallel)
+                pending.add(pool.submit(frame));
+            else
+                writeFrame(bw, call(frame), frameOffsets, written++);
+
+            if (pending.size() >= maxPending)
+                writeFrame(bw, await(pending.poll()), frameOffsets, written++);
         }
+        while (!pending.isEmpty())
+            writeFrame(bw, await(pending.poll()), frameOffsets, written++);
+
+        if (indexed) {
+            long[] originalOffsets = new long[written];
+            for (int i = 0; i < written; ++i)
+                originalOffsets[i] = i * frameSize;
+            FrameFormat.writeFrame(bw, FrameFormat.encodeIndex(originalOffsets, frameOffsets, written, size,
+                    bw.getBitPosition() / 8));
+        }
+    }
 
-        this.fileBlockCount = 0;
+    /**
+     * @return most frames writeFrames has in use at once, read but not yet written
+     */
+    private int maxPendingFrames() {
+        return parallel ? 2 * ForkJoinPool.commonPool().getParallelism() : 1;
+    }
 
-        while(fileBitCount > 0){
-            if(fileBitCount < blockLength) {
+    /**
+     * Writes frame and keeps its byte offset as the index-th of frameOffsets, if they are kept
+     */
+    private static void writeFrame(BufferedBitWriter bw, FrameFormat.EncodedFrame frame, long[] frameOffsets,
+                                   int index) throws IOException {
+        if (index < frameOffsets.length)
+            frameOffsets[index] = bw.getBitPosition() / 8;
+        FrameFormat.writeFrame(bw, frame);
+    }
 
-                Integer block = br.readBits(fileBitCount);
-                addToFrequencies(block);
-                this.fileBlockCount+=1;
-                this.lastBlockLength = fileBitCount;
-                break;
+    /**
+     * Waits for task and rethrows its exception
+     */
+    private static <T> T await(Future<T> task) throws IOException {
+        try {
+            return task.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        catch (ExecutionException e) {
+            //ForkJoinTask wraps checked exceptions of callables into RuntimeException
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof IOException)
+                    throw (IOException) cause;
             }
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
 
-            Integer block = br.readBits(blockLength);
-            addToFrequencies(block);
-            fileBitCount-=blockLength;
-            this.fileBlockCount+=1;
+    private static <T> T call(Callable<T> task) throws IOException {
+        try {
+            return task.call();
+        }
+        catch (IOException | RuntimeException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new IOException(e);
         }
     }
 
-    private void addToFrequencies(Integer block){
-        if(frequencies.containsKey(block)){
-            frequencies.put(block, frequencies.get(block) + 1);
+    /**
+     * Gets frequencies of blocks from dataFile
+     * @throws IOException if dataFile can't be read
+     */
+    private void getFrequencies() throws IOException {
+
+        long fileBitCount = dataInput.size() * 8;
+
+        if(fileBitCount <= blockLength){
+            throw new IllegalArgumentException("Block length is bigger than or equal to total file bit count !");
+        }
+
+        if (sampled()) {
+            this.frequencies = FrequencyCounter.sample(dataInput, sampleSize, blockLength, parallel);
+            FrequencyCounter.addUnseen(frequencies);
         }
         else
-            frequencies.put(block, 1);
+            this.frequencies = FrequencyCounter.count(dataInput, blockLength, parallel);
+    }
+
+    /**
+     * @return whether the code of dataFile is built of a sample of it
+     */
+    private boolean sampled() {
+        return sampleSize > 0 && sampleSize < dataInput.size();
     }
 
-    private void getSymbolCoding() {
+    private void getSymbolCoding() throws IOException {
+
+        this.codeBook = CodeBook.of(frequencies, blockLength, maxCodeLength);
 
-        this.encodedAlphabet = HashBiMap.create();
+        if (codeDataFile != null) {
+            try (BufferedWriter bw = new BufferedWriter(new FileWriter(codeDataFile))) {
+                codeBook.writeCodeData(bw);
+            }
+        }
+    }
 
-        try(BufferedWriter bw = new BufferedWriter(new FileWriter(codeDataFile))) {
+    public void decode(String encodedFile, String decodedFile) throws IOException {
 
-            //Sum of probabilities up to p_i not counting p_i. If p_0 then sum is 0
-            RationalFraction currSum = new RationalFraction(0, fileBlockCount);
-            for (int i = 0; i < this.probabilities.size(); ++i) {
+        CodecStats stats = new CodecStats(false);
+        long start = startPhase(CodecPhase.DECODING);
+
+        try (MappedInput encodedInput = new MappedInput(encodedFile)) {
+            long length;
+            boolean framed = encodedInput.size() >= 4
+                    && encodedInput.slice(0, 4).getInt(0) >>> 8 == FrameFormat.MAGIC;
+            if (framed && pipelined)
+                length = decodePipelined(encodedFile, decodedFile);
+            else if (framed)
+                length = decodeFrames(encodedInput, decodedFile);
+            else
+                length = decodeSingleStream(encodedInput, decodedFile);
+            stats.setBytes(encodedInput.size(), length);
+            stats.setBlocks((length * 8 + blockLength - 1) / blockLength);
+        }
 
-                int numer = probabilities.get(i).getNumerator();
-                int denom = probabilities.get(i).getDenominator();
-                int digits = 0;
-                while(numer < denom){
-                    numer*=2;
-                    digits++;
+        finishPhase(CodecPhase.DECODING, start, stats);
+        listener.finished(stats);
+    }
+
+    /**
+     * Decodes data of the framed format in memory
+     * @return decoded data
+     */
+    public byte[] decode(byte[] encoded) throws IOException {
+        ByteBuffer src = ByteBuffer.wrap(encoded);
+        long length = decodedLength(src);
+        if (length > Integer.MAX_VALUE - 8)
+            throw new IOException("Decoded data is too long for an array");
+        ByteBuffer decoded = ByteBuffer.allocate((int) length);
+        decode(src, decoded);
+        return decoded.array();
+    }
+
+    /**
+     * Decodes bytes of the framed format between src's position and limit into dst starting at its position.
+     * Frames are decoded in parallel straight into dst, src's position is moved to its limit and dst's
+     * position past the decoded bytes
+     * @return number of decoded bytes
+     * @throws IOException if data is corrupted or dst has less than decodedLength(src) bytes left
+     */
+    public int decode(ByteBuffer src, ByteBuffer dst) throws IOException {
+        CodecStats stats = new CodecStats(false);
+        long start = startPhase(CodecPhase.DECODING);
+
+        ByteBuffer data = src.slice();
+        List<FrameEntry> frames = new ArrayList<>();
+        FrameFormat.Header header = indexFrames(data.remaining(),
+                (from, to) -> new BufferedBitReader(slice(data, from, to)), models, frames);
+
+        long length = decodedLength(frames);
+        if (length > dst.remaining())
+            throw new IOException("Output buffer is full");
+
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (FrameEntry entry : frames) {
+            tasks.add(() -> {
+                ByteBuffer target = slice(dst, entry.originalOffset, entry.originalOffset + entry.frame.originalLength);
+                //Stored bytes are copied in bulk
+                if (entry.frame.type == FrameFormat.FRAME_STORED) {
+                    target.put(slice(data, entry.payloadFrom, entry.payloadTo));
+                    return null;
                 }
+                decodeFrame(new BufferedBitReader(slice(data, entry.payloadFrom, entry.payloadTo)), header,
+                        entry.frame, target);
+                return null;
+            });
+        }
+        callAll(tasks);
 
-                //Calculating probability sum up to current probability
-                if (i > 0)
-                    currSum.setNumerator(currSum.getNumerator() + probabilities.get(i - 1).getNumerator());
+        dst.position(dst.position() + (int) length);
+        src.position(src.limit());
 
-                //Getting codeword of the block
-                String codeWord = rationalFracToCodeWord(currSum, digits);
+        finishPhase(CodecPhase.DECODING, start, stats);
+        stats.setBytes(data.remaining(), length);
+        stats.setBlocks((length * 8 + header.blockLength - 1) / header.blockLength);
+        listener.finished(stats);
+        return (int) length;
+    }
 
-                bw.write(String.format("%-10d %s %5d %15s %15s", probabilities.get(i).getRawByte(),
-                        probabilities.get(i).getRational(), digits, currSum.getRational(), codeWord) + System.lineSeparator());
-                //Assigning block it's codeword
-                encodedAlphabet.put(probabilities.get(i).getRawByte(), codeWord);
+    /**
+     * @return number of bytes which framed data between src's position and limit decodes to
+     */
+    public static long decodedLength(ByteBuffer src) throws IOException {
+        ByteBuffer data = src.slice();
+        List<FrameEntry> frames = new ArrayList<>();
+        indexFrames(data.remaining(), (from, to) -> new BufferedBitReader(slice(data, from, to)), null, frames);
+        return decodedLength(frames);
+    }
 
-                BigInteger temp = BigInteger.valueOf(probabilities.get(i).getNumerator()*codeWord.length());
-                encodedBlockBitCount = encodedBlockBitCount.add(temp);
+    private static long decodedLength(List<FrameEntry> frames) {
+        if (frames.isEmpty())
+            return 0;
+        FrameEntry last = frames.get(frames.size() - 1);
+        return last.originalOffset + last.frame.originalLength;
+    }
+
+    /**
+     * Decodes file of FrameFormat, frames are decoded in parallel straight to their offsets in decodedFile
+     * @return number of decoded bytes
+     */
+    private long decodeFrames(MappedInput encodedInput, String decodedFile) throws IOException {
+        List<FrameEntry> frames = new ArrayList<>();
+        FrameFormat.Header header = indexFrames(encodedInput.size(), encodedInput::reader, models, frames);
+        this.blockLength = header.blockLength;
+
+        try (FileChannel channel = FileChannel.open(Paths.get(decodedFile), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            List<Callable<Void>> tasks = new ArrayList<>();
+            for (FrameEntry entry : frames) {
+                tasks.add(() -> {
+                    //Stored bytes go from the mapping straight to the file
+                    if (entry.frame.type == FrameFormat.FRAME_STORED) {
+                        long position = entry.originalOffset;
+                        ByteBlockSource blocks = encodedInput.blocks(entry.payloadFrom, entry.payloadTo);
+                        for (ByteBuffer block = blocks.next(); block != null; block = blocks.next()) {
+                            while (block.hasRemaining())
+                                position += channel.write(block, position);
+                        }
+                        return null;
+                    }
+                    ByteBuffer decoded = ByteBuffer.allocate(entry.frame.originalLength);
+                    decodeFrame(encodedInput.reader(entry.payloadFrom, entry.payloadTo), header, entry.frame, decoded);
+                    decoded.flip();
+                    while (decoded.hasRemaining())
+                        channel.write(decoded, entry.originalOffset + decoded.position());
+                    return null;
+                });
             }
+            callAll(tasks);
         }
-        catch (IOException e) {
-            e.printStackTrace();
+        return decodedLength(frames);
+    }
+
+    /**
+     * Decodes file of FrameFormat frame after frame, with encodedFile read ahead and decodedFile written behind
+     * on their own threads
+     * @return number of decoded bytes
+     */
+    private long decodePipelined(String encodedFile, String decodedFile) throws IOException {
+        try (ShannonInputStream in = new ShannonInputStream(new PrefetchInputStream(
+                new FileInputStream(encodedFile), PIPELINE_BUFFER_SIZE, PIPELINE_BUFFERS), models);
+             OutputStream out = new AsyncOutputStream(new FileOutputStream(decodedFile), PIPELINE_BUFFER_SIZE,
+                     PIPELINE_BUFFERS)) {
+            this.blockLength = in.getBlockLength();
+            byte[] buffer = new byte[PIPELINE_BUFFER_SIZE];
+            long length = 0;
+            for (int count = in.read(buffer); count >= 0; count = in.read(buffer)) {
+                out.write(buffer, 0, count);
+                length += count;
+            }
+            return length;
         }
     }
 
     /**
-     * Converts fraction to it's codeword with specified precision
-     * @param rf fraction
-     * @param precision decimal spaces to take after 0.
-     * @return codeword
+     * Reads header of FrameFormat and builds frame index by hopping over frame headers
+     * @param models models which header can refer to, null if none
+     * @param frames list to which frames are added in order
      */
-    private static String rationalFracToCodeWord(RationalFraction rf, int precision){
-        String codeWord = "";
-        int tempNum = rf.getNumerator();
-        int tempDen = rf.getDenominator();
+    private static FrameFormat.Header indexFrames(long size, FrameInput input, ModelCache models,
+                                                  List<FrameEntry> frames) throws IOException {
+        FrameFormat.Header header;
+        long frameOffset;
+        try (BufferedBitReader br = input.reader(0, size)) {
+            header = FrameFormat.readHeader(br, models);
+            frameOffset = br.getBitPosition() / 8;
+        }
 
-        for(int i = 0; i < precision; ++i){
-            tempNum*=2;
-            if(tempNum >= tempDen){
-                codeWord += "1";
-                tempNum-=tempDen;
+        long decodedOffset = 0;
+        while (frameOffset < size) {
+            FrameEntry entry = new FrameEntry();
+            entry.payloadFrom = frameOffset + FrameFormat.FRAME_HEADER_LENGTH;
+            if (entry.payloadFrom > size)
+                throw new IOException("Encoded data is truncated");
+            try (BufferedBitReader br = input.reader(frameOffset, entry.payloadFrom)) {
+                entry.frame = FrameFormat.readFrameHeader(br);
             }
-            else
-                codeWord += "0";
+            entry.payloadTo = entry.payloadFrom + (entry.frame.bitLength + 7) / 8;
+            if (entry.payloadTo > size)
+                throw new IOException("Encoded data is truncated");
+            entry.originalOffset = decodedOffset;
+
+            frames.add(entry);
+            frameOffset = entry.payloadTo;
+            decodedOffset += entry.frame.originalLength;
         }
-        return codeWord;
+        return header;
     }
 
-    public void decode(String encodedFile, String decodedFile) {
+    /**
+     * Decodes one frame into target, starting at target's position
+     */
+    private static void decodeFrame(BufferedBitReader br, FrameFormat.Header header, FrameFormat.Frame frame,
+                                    ByteBuffer target) throws IOException {
+        try (BufferedBitReader reader = br;
+             BufferedBitWriter bw = new BufferedBitWriter(target)) {
+            FrameFormat.decodeFrame(reader, header, frame, bw);
+        }
+    }
 
-        long startTime = System.currentTimeMillis();
-        System.out.println("DECODING...");
+    /**
+     * Runs tasks on all cores if parallel, otherwise one after another
+     */
+    private void callAll(List<Callable<Void>> tasks) throws IOException {
+        if (parallel) {
+            for (Future<Void> task : ForkJoinPool.commonPool().invokeAll(tasks))
+                await(task);
+        }
+        else {
+            for (Callable<Void> task : tasks)
+                call(task);
+        }
+    }
 
-        this.encodedAlphabet = HashBiMap.create();
+    /**
+     * Decodes file of the single stream format, which has no frames:
+     * [4 bits]: bit block length -1
+     * [4 bits]: last bit block length -1
+     * [16 bits]: number of dictionary' blocks -1
+     * [8 bits] : number of trailing 0 which BitWriter appended to the end of file
+     * [n bits] - 'dictionary', see CodeBook.readDictionary
+     * [m bits] - coded blocks, followed by trailing 0
+     * @return number of decoded bytes
+     */
+    private long decodeSingleStream(MappedInput encodedInput, String decodedFile) throws IOException {
 
-        try {
-            BitWriter bw = new BitWriter(decodedFile);
-            BitReader br = new BitReader(encodedFile);
-            BigInteger encodedFileLength = new BigInteger(Integer.toString(br.length() * 8));
+        try (BufferedBitWriter bw = new BufferedBitWriter(decodedFile);
+             BufferedBitReader br = encodedInput.reader()) {
+            long encodedFileBitCount = encodedInput.size() * 8;
 
-            encodedFileLength = getDictionary(br, encodedFileLength);
+            this.blockLength = (int) br.readBits(4) + 1;
+            this.lastBlockLength = (int) br.readBits(4) + 1;
+            int dictionarySize = (int) br.readBits(16) + 1;
+            int uselessZeroes = (int) br.readBits(8);
 
-            BiMap<String, Integer> inverseDictionary = this.encodedAlphabet.inverse();
+            DecodeTable table = CodeBook.readDictionary(br, blockLength, dictionarySize);
+            int maxCodeWordLength = table.getMaxCodeLength();
 
-            String bitSequence = "";
-            while (encodedFileLength.compareTo(BigInteger.valueOf(uselessZeroes)) > 0) {
-                bitSequence+= Integer.toString(br.readBit());
-                if(inverseDictionary.get(bitSequence) != null){
-                    if((encodedFileLength.subtract(BigInteger.valueOf(bitSequence.length())).intValue() == uselessZeroes)){
-                        bw.writeBits(inverseDictionary.get(bitSequence), lastBlockLength);
-                        break;
-                    }
-                    bw.writeBits(inverseDictionary.get(bitSequence), blockLength);
-                    encodedFileLength = encodedFileLength.subtract(BigInteger.valueOf(bitSequence.length()));
-                    bitSequence = "";
-                }
-            }
-            bw.flush();
-        }
-        catch (FileNotFoundException e) {
-            e.printStackTrace();
-        }
-        System.out.println("DECODING FINISHED, TIME ELAPSED: " + (System.currentTimeMillis() - startTime) + " milis");
-    }
-
-    private int uselessZeroes = 0;
-
-    private BigInteger getDictionary(BitReader br, BigInteger fileLength){
-        this.encodedAlphabet = HashBiMap.create();
-
-        this.blockLength = br.readBits(4) + 1;
-        this.lastBlockLength = br.readBits(4) + 1;
-        int dictionarySize = br.readBits(16) + 1;
-        this.uselessZeroes = br.readBits(8);
-        fileLength = fileLength.subtract(BigInteger.valueOf(4 + 4 + 16 + 8));
-
-        //System.out.println(uselessZeroes + " " + blockLength + " " + lastBlockLength + " " + dictionarySize);
-
-        for(int i = 0; i < dictionarySize; ++i){
-            int block = br.readBits(blockLength);
-            fileLength = fileLength.subtract(BigInteger.valueOf(blockLength));
-            int codeWordLen = br.readBits(8);
-            fileLength = fileLength.subtract(BigInteger.valueOf(8));
-            String codeWord = "";
-            while(codeWordLen > 0){
-                int bt = br.readBit();
-                fileLength = fileLength.subtract(BigInteger.ONE);
-                if(bt == 0)
-                    codeWord+="0";
-                if(bt == 1)
-                    codeWord+="1";
-                codeWordLen--;
+            //Bits left after header, without trailing zeroes appended by BitWriter
+            long payloadBitCount = encodedFileBitCount - br.getBitPosition() - uselessZeroes;
+
+            while (payloadBitCount > 0) {
+                //Past the end of file peeked bits are zeroes, payloadBitCount guards against decoding them
+                int entry = table.lookup(br.peekBits(maxCodeWordLength), maxCodeWordLength);
+                int codeWordLength = DecodeTable.length(entry);
+                if (entry == 0 || codeWordLength > payloadBitCount)
+                    throw new IOException("Encoded file is corrupted");
+
+                br.skipBits(codeWordLength);
+                payloadBitCount -= codeWordLength;
+                bw.writeBits(DecodeTable.symbol(entry), payloadBitCount == 0 ? lastBlockLength : blockLength);
             }
-            this.encodedAlphabet.put(block, codeWord);
+            return (bw.getBitPosition() + 7) / 8;
         }
-        return fileLength;
+    }
+
+    /**
+     * Supplies reader of bytes [from, to) of an input, every call gets its own reader
+     */
+    private interface FrameInput {
+        BufferedBitReader reader(long from, long to) throws IOException;
+    }
+
+    private static final class FrameEntry {
+        //Byte range of frame's rest in encoded input
+        long payloadFrom;
+        long payloadTo;
+        //Byte offset of frame in decoded output
+        long originalOffset;
+        FrameFormat.Frame frame;
     }
 }
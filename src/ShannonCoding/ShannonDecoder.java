@@ -0,0 +1,107 @@
+package ShannonCoding;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * @author Lukas
+ */
+
+/**
+ * Decoding session of a ShannonModel, not thread safe. Creating one is cheap, everything heavy belongs to the model.
+ *
+ * Data encoded by the model's encoders is decoded with the model's decoding table. Any other data of the framed
+ * format is decoded too, but its decoding table is built from its own header or comes from the model cache
+ * if the header refers to another model.
+ */
+public final class ShannonDecoder {
+
+    private final ShannonModel model;
+
+    //Models which headers can refer to besides this decoder's model, null if none
+    private ModelCache models;
+
+    ShannonDecoder(ShannonModel model) {
+        this.model = model;
+    }
+
+    public void setModelCache(ModelCache models) {
+        this.models = models;
+    }
+
+    public ShannonModel getModel() {
+        return model;
+    }
+
+    public byte[] decode(byte[] encoded) throws IOException {
+        long length = Shannon.decodedLength(ByteBuffer.wrap(encoded));
+        if (length > Integer.MAX_VALUE - 8)
+            throw new IOException("Decoded data is too long for an array");
+        byte[] decoded = new byte[(int) length];
+        decode(ByteBuffer.wrap(encoded), ByteBuffer.wrap(decoded));
+        return decoded;
+    }
+
+    /**
+     * Decodes bytes of the framed format between src's position and limit into dst starting at its position,
+     * src's position is moved to its limit and dst's position past the decoded bytes
+     * @return number of decoded bytes
+     * @throws IOException if data is corrupted or dst has not enough space left
+     */
+    public int decode(ByteBuffer src, ByteBuffer dst) throws IOException {
+        ByteBuffer data = src.slice();
+        ByteBuffer target = dst.duplicate();
+
+        FrameFormat.Header header;
+        int offset;
+        if (startsWith(data, model.getModelHeader())) {
+            header = model.getDecodedHeader();
+            offset = model.getModelHeader().length;
+        }
+        else if (startsWith(data, model.getHeader())) {
+            header = model.getDecodedHeader();
+            offset = model.getHeader().length;
+        }
+        else {
+            try (BufferedBitReader br = new BufferedBitReader(data)) {
+                header = FrameFormat.readHeader(br, models);
+                offset = (int) (br.getBitPosition() / 8);
+            }
+        }
+
+        while (offset < data.limit()) {
+            ByteBuffer frameData = data.duplicate();
+            frameData.position(offset);
+            try (BufferedBitReader br = new BufferedBitReader(frameData)) {
+                FrameFormat.Frame frame = FrameFormat.readFrameHeader(br);
+                if (frame.originalLength > target.remaining())
+                    throw new IOException("Output buffer is full");
+                if ((frame.bitLength + 7) / 8 > data.limit() - offset - FrameFormat.FRAME_HEADER_LENGTH)
+                    throw new IOException("Encoded data is truncated");
+
+                ByteBuffer frameTarget = target.duplicate();
+                frameTarget.limit(target.position() + frame.originalLength);
+                try (BufferedBitWriter bw = new BufferedBitWriter(frameTarget)) {
+                    FrameFormat.decodeFrame(br, header, frame, bw);
+                }
+                target.position(frameTarget.position());
+                offset += FrameFormat.FRAME_HEADER_LENGTH + (int) ((frame.bitLength + 7) / 8);
+            }
+        }
+
+        int length = target.position() - dst.position();
+        dst.position(target.position());
+        src.position(src.limit());
+        return length;
+    }
+
+    private static boolean startsWith(ByteBuffer data, byte[] prefix) {
+        if (data.remaining() < prefix.length)
+            return false;
+        for (int i = 0; i < prefix.length; ++i) {
+            if (data.get(data.position() + i) != prefix[i])
+                return false;
+        }
+        return true;
+    }
+}
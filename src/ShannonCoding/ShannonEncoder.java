@@ -0,0 +1,103 @@
+package ShannonCoding;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * @author Lukas
+ */
+
+/**
+ * Encoding session of a ShannonModel, not thread safe. Creating one is cheap, everything heavy belongs to the model.
+ *
+ * Output is the framed format with the model's dictionary in its header, so it can be decoded by Shannon,
+ * ShannonInputStream or any decoder session. Header can refer to the model by its id instead, then only
+ * decoders which know the model can decode it. Frames are coded one after another straight into the output.
+ */
+public final class ShannonEncoder {
+
+    private static final int DEFAULT_FRAME_SIZE = 4 << 20;
+
+    private final ShannonModel model;
+    private final CodeBook codeBook;
+
+    private int frameSize;
+
+    //Whether header refers to the model instead of holding its dictionary
+    private boolean referModel = false;
+
+    ShannonEncoder(ShannonModel model) {
+        this.model = model;
+        this.codeBook = model.getCodeBook();
+        setFrameSize(DEFAULT_FRAME_SIZE);
+    }
+
+    /**
+     * @param frameSize bytes of input coded into one frame, rounded down to block alignment
+     */
+    public void setFrameSize(int frameSize) {
+        if (frameSize < 1)
+            throw new IllegalArgumentException("Frame size must be positive");
+        int alignment = FrequencyCounter.alignment(model.getBlockLength());
+        this.frameSize = Math.max(alignment, frameSize - frameSize % alignment);
+    }
+
+    /**
+     * @param referModel whether header refers to the model by id instead of holding its dictionary,
+     *                   decoder then needs the model, see ModelCache
+     */
+    public void setReferModel(boolean referModel) {
+        this.referModel = referModel;
+    }
+
+    public ShannonModel getModel() {
+        return model;
+    }
+
+    /**
+     * @return most bytes which encoding of srcLength bytes can take
+     */
+    public long maxEncodedLength(long srcLength) {
+        return model.maxEncodedLength(srcLength, frameSize);
+    }
+
+    public byte[] encode(byte[] data) throws IOException {
+        long maxLength = maxEncodedLength(data.length);
+        if (maxLength > Integer.MAX_VALUE - 8)
+            throw new IllegalArgumentException("Data is too long to be encoded into an array");
+        ByteBuffer encoded = ByteBuffer.allocate((int) maxLength);
+        int length = encode(ByteBuffer.wrap(data), encoded);
+        return Arrays.copyOf(encoded.array(), length);
+    }
+
+    /**
+     * Encodes bytes between src's position and limit into dst starting at its position, src's position is moved
+     * to its limit and dst's position past the encoded bytes
+     * @return number of encoded bytes
+     * @throws IOException if dst has less than needed space left, maxEncodedLength is always enough
+     * @throws IllegalArgumentException if src has a block which is not in the model
+     */
+    public int encode(ByteBuffer src, ByteBuffer dst) throws IOException {
+        ByteBuffer data = src.slice();
+        ByteBuffer target = dst.duplicate();
+
+        byte[] header = referModel ? model.getModelHeader() : model.getHeader();
+        if (target.remaining() < header.length)
+            throw new IOException("Output buffer is full");
+        target.put(header);
+
+        for (int from = 0; from < data.limit(); from += frameSize) {
+            int to = Math.min(data.limit(), from + frameSize);
+            ByteBuffer frame = data.duplicate();
+            frame.position(from);
+            frame.limit(to);
+            FrameFormat.encodeFrame(codeBook, frame, target);
+        }
+
+        int length = target.position() - dst.position();
+        dst.position(target.position());
+        src.position(src.limit());
+        return length;
+    }
+}
@@ -0,0 +1,106 @@
+package ShannonCoding;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * @author Lukas
+ */
+
+/**
+ * Decodes the framed format read from a stream, frame after frame.
+ * Only one decoded frame is held in memory. Files of the single stream format need Shannon.decode.
+ */
+public class ShannonInputStream extends InputStream {
+
+    private final BufferedBitReader br;
+    private final FrameFormat.Header header;
+
+    //Decoded bytes of the current frame
+    private byte[] frame = new byte[0];
+    private int position = 0;
+    private int limit = 0;
+
+    private boolean closed = false;
+
+    public ShannonInputStream(InputStream in) throws IOException {
+        this(in, null);
+    }
+
+    /**
+     * @param models models which header can refer to, null if none
+     */
+    public ShannonInputStream(InputStream in, ModelCache models) throws IOException {
+        this.br = new BufferedBitReader(in);
+        try {
+            this.header = FrameFormat.readHeader(br, models);
+        }
+        catch (IOException e) {
+            br.close();
+            throw e;
+        }
+    }
+
+    int getBlockLength() {
+        return header.blockLength;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill())
+            return -1;
+        return frame[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || len > b.length - off)
+            throw new IndexOutOfBoundsException();
+        if (len == 0)
+            return 0;
+        if (!fill())
+            return -1;
+        int n = Math.min(len, limit - position);
+        System.arraycopy(frame, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return limit - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        br.close();
+    }
+
+    /**
+     * Decodes frames until some bytes are available
+     * @return false at the end of stream
+     */
+    private boolean fill() throws IOException {
+        if (closed)
+            throw new IOException("Stream is closed");
+        while (position == limit) {
+            if (!br.hasMoreBits())
+                return false;
+
+            FrameFormat.Frame next = FrameFormat.readFrameHeader(br);
+            if (frame.length < next.originalLength)
+                frame = new byte[next.originalLength];
+            try (BufferedBitWriter bw = new BufferedBitWriter(ByteBuffer.wrap(frame, 0, next.originalLength))) {
+                FrameFormat.decodeFrame(br, header, next, bw);
+            }
+            br.alignToByte();
+            position = 0;
+            limit = next.originalLength;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,263 @@
+package ShannonCoding;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * @author Lukas
+ */
+
+/**
+ * Immutable Shannon code of blocks, built once and shared by any number of threads.
+ *
+ * Coding is done by lightweight sessions, see newEncoder and newDecoder. A session belongs to one thread,
+ * the model's codeWords, decoding table and encoded header are built only once and used by every session.
+ *
+ * Model can be saved to a file and loaded again, same frequencies always give the same codeWords. Data encoded
+ * with a reference to the model instead of its dictionary is identified by getId, a hash of the saved model.
+ *
+ * Model file:
+ * [24 bits]: MAGIC, "SHM" in ASCII
+ * [8 bits]: VERSION
+ * [8 bits]: bit block length
+ * [32 bits]: number n of blocks
+ * n times:
+ *      [bit block length bits]: integer value of bit block
+ *      [64 bits]: frequency of bit block
+ * [0-7 bits] - 0 up to the byte boundary
+ */
+public final class ShannonModel {
+
+    static final int MAGIC = 0x53484D;
+    static final int VERSION = 1;
+
+    private final CodeBook codeBook;
+    private final DecodeTable table;
+
+    //Saved model, its hash is the id
+    private final byte[] model;
+    private final long id;
+
+    //Header of FrameFormat with this model's dictionary, starts everything encoded by this model
+    private final byte[] header;
+    //Header of FrameFormat which refers to this model by id
+    private final byte[] modelHeader;
+    private final FrameFormat.Header decodedHeader;
+
+    private ShannonModel(CodeBook codeBook) {
+        if (codeBook.size() == 0)
+            throw new IllegalArgumentException("Model needs at least one block");
+        this.codeBook = codeBook;
+        this.table = codeBook.decodeTable();
+
+        this.model = toBytes(bw -> writeModel(bw, codeBook));
+        this.id = hash(model);
+        this.header = toBytes(bw -> FrameFormat.writeHeader(bw, codeBook.getBlockLength(), codeBook));
+        this.modelHeader = toBytes(bw -> FrameFormat.writeModelHeader(bw, codeBook.getBlockLength(), id));
+
+        this.decodedHeader = new FrameFormat.Header();
+        decodedHeader.blockLength = codeBook.getBlockLength();
+        decodedHeader.table = table;
+    }
+
+    /**
+     * Builds model of blocks between sample's position and limit, sample itself is not modified
+     */
+    public static ShannonModel train(ByteBuffer sample, int blockLength) {
+        checkBlockLength(blockLength);
+        return new ShannonModel(CodeBook.of(FrequencyCounter.count(sample, blockLength), blockLength));
+    }
+
+    public static ShannonModel train(byte[] sample, int blockLength) {
+        return train(ByteBuffer.wrap(sample), blockLength);
+    }
+
+    /**
+     * @param frequencies frequencies of blocks indexed by block value, blocks of frequency 0 can't be encoded
+     */
+    public static ShannonModel fromFrequencies(long[] frequencies, int blockLength) {
+        checkBlockLength(blockLength);
+        return new ShannonModel(CodeBook.of(frequencies.clone(), blockLength));
+    }
+
+    /**
+     * Builds model of blocks of the whole sample file
+     */
+    public static ShannonModel train(String sampleFile, int blockLength) throws IOException {
+        checkBlockLength(blockLength);
+        try (MappedInput sample = new MappedInput(sampleFile)) {
+            return new ShannonModel(CodeBook.of(FrequencyCounter.count(sample, blockLength, true), blockLength));
+        }
+    }
+
+    /**
+     * Reads model saved by save
+     */
+    public static ShannonModel load(InputStream in) throws IOException {
+        BufferedBitReader br = new BufferedBitReader(in);
+        if (br.readBits(24) != MAGIC)
+            throw new IOException("Not a Shannon model");
+        int version = (int) br.readBits(8);
+        if (version != VERSION)
+            throw new IOException("Unsupported model version " + version);
+        int blockLength = (int) br.readBits(8);
+        if (blockLength < 1 || blockLength > 16)
+            throw new IOException("Block length " + blockLength + " is out of range");
+        int size = (int) br.readBits(32);
+        if (size < 1 || size > 1 << blockLength)
+            throw new IOException("Model size " + size + " is out of range");
+
+        long[] frequencies = new long[1 << blockLength];
+        for (int i = 0; i < size; ++i) {
+            int block = (int) br.readBits(blockLength);
+            long frequency = (br.readBits(32) << 32) | br.readBits(32);
+            if (frequency <= 0 || frequencies[block] != 0)
+                throw new IOException("Model is corrupted");
+            frequencies[block] = frequency;
+        }
+        try {
+            return new ShannonModel(CodeBook.of(frequencies, blockLength));
+        }
+        catch (IllegalArgumentException | IllegalStateException e) {
+            throw new IOException("Model is corrupted", e);
+        }
+    }
+
+    public static ShannonModel load(String file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return load(in);
+        }
+    }
+
+    public void save(OutputStream out) throws IOException {
+        out.write(model);
+    }
+
+    public void save(String file) throws IOException {
+        try (OutputStream out = new FileOutputStream(file)) {
+            save(out);
+        }
+    }
+
+    private static void writeModel(BufferedBitWriter bw, CodeBook codeBook) throws IOException {
+        int blockLength = codeBook.getBlockLength();
+        long[] frequencies = codeBook.frequencies();
+        bw.writeBits(MAGIC, 24);
+        bw.writeBits(VERSION, 8);
+        bw.writeBits(blockLength, 8);
+        bw.writeBits(codeBook.size(), 32);
+        for (int block = 0; block < frequencies.length; ++block) {
+            if (frequencies[block] == 0)
+                continue;
+            bw.writeBits(block, blockLength);
+            bw.writeBits(frequencies[block] >>> 32, 32);
+            bw.writeBits(frequencies[block], 32);
+        }
+    }
+
+    /**
+     * @return first 8 bytes of SHA-256 of bytes
+     */
+    private static long hash(byte[] bytes) {
+        try {
+            return ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(bytes)).getLong();
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * @return everything writer wrote, padded to the byte boundary
+     */
+    private static byte[] toBytes(BitWriting writing) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (BufferedBitWriter bw = new BufferedBitWriter(bytes)) {
+            writing.write(bw);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private interface BitWriting {
+        void write(BufferedBitWriter bw) throws IOException;
+    }
+
+    private static void checkBlockLength(int blockLength) {
+        if (blockLength < 1 || blockLength > 16)
+            throw new IllegalArgumentException("Block length must be between 1 and 16");
+    }
+
+    /**
+     * @return hash of the saved model, same for models of same frequencies
+     */
+    public long getId() {
+        return id;
+    }
+
+    public int getBlockLength() {
+        return codeBook.getBlockLength();
+    }
+
+    /**
+     * @return number of blocks which have a codeWord
+     */
+    public int getDictionarySize() {
+        return codeBook.size();
+    }
+
+    /**
+     * @return most bytes which encoding of srcLength bytes can take with frames of frameSize bytes, whichever
+     * header the encoder writes
+     */
+    public long maxEncodedLength(long srcLength, int frameSize) {
+        long frames = (srcLength + frameSize - 1) / frameSize;
+        long blocks = (srcLength * 8 + getBlockLength() - 1) / getBlockLength() + frames;
+        //Header which refers to the model is longer than one holding a small dictionary
+        return Math.max(header.length, modelHeader.length) + frames * (FrameFormat.FRAME_HEADER_LENGTH + 1)
+                + (blocks * codeBook.maxCodeWordLength() + 7) / 8;
+    }
+
+    /**
+     * @return new encoder session, to be used by one thread at a time
+     */
+    public ShannonEncoder newEncoder() {
+        return new ShannonEncoder(this);
+    }
+
+    /**
+     * @return new decoder session, to be used by one thread at a time
+     */
+    public ShannonDecoder newDecoder() {
+        return new ShannonDecoder(this);
+    }
+
+    CodeBook getCodeBook() {
+        return codeBook;
+    }
+
+    /**
+     * @return header with the dictionary written by encoder sessions, not to be modified
+     */
+    byte[] getHeader() {
+        return header;
+    }
+
+    /**
+     * @return header which refers to this model, not to be modified
+     */
+    byte[] getModelHeader() {
+        return modelHeader;
+    }
+
+    /**
+     * @return header of FrameFormat with this model's decoding table, not to be modified
+     */
+    FrameFormat.Header getDecodedHeader() {
+        return decodedHeader;
+    }
+}
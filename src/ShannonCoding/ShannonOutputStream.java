@@ -0,0 +1,132 @@
+package ShannonCoding;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * @author Lukas
+ */
+
+/**
+ * Encodes bytes written to it into the framed format without staging them anywhere else.
+ *
+ * Bytes are buffered up to the chunk size, then the chunk gets its own codeWords built from its own frequencies
+ * and is written as a frame with its own dictionary, so memory use is bounded by the chunk size.
+ */
+public class ShannonOutputStream extends OutputStream {
+
+    private static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+    private final BufferedBitWriter bw;
+    private final int blockLength;
+    //Longest codeWord in bits
+    private int maxCodeLength = DecodeTable.MAX_CODE_LENGTH;
+    //Whether chunks are coded into several streams which are decoded side by side
+    private boolean interleaved = false;
+
+    private final byte[] chunk;
+    private int count = 0;
+
+    private boolean closed = false;
+
+    public ShannonOutputStream(OutputStream out, int blockLength) throws IOException {
+        this(out, blockLength, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param chunkSize bytes coded into one frame, rounded down to block alignment
+     */
+    public ShannonOutputStream(OutputStream out, int blockLength, int chunkSize) throws IOException {
+        if (blockLength < 1 || blockLength > 16)
+            throw new IllegalArgumentException("Block length must be between 1 and 16");
+        if (chunkSize < 1)
+            throw new IllegalArgumentException("Chunk size must be positive");
+
+        this.blockLength = blockLength;
+        int alignment = FrequencyCounter.alignment(blockLength);
+        this.chunk = new byte[Math.max(alignment, chunkSize - chunkSize % alignment)];
+        this.bw = new BufferedBitWriter(out);
+        FrameFormat.writeHeader(bw, blockLength, null);
+    }
+
+    /**
+     * @param maxCodeLength longest codeWord in bits, at most 32, must fit every block of a chunk
+     */
+    public void setMaxCodeLength(int maxCodeLength) {
+        if (maxCodeLength < 1 || maxCodeLength > DecodeTable.MAX_CODE_LENGTH)
+            throw new IllegalArgumentException("CodeWord length limit must be between 1 and "
+                    + DecodeTable.MAX_CODE_LENGTH);
+        this.maxCodeLength = maxCodeLength;
+    }
+
+    /**
+     * @param interleaved whether every chunk is coded into four streams, see Shannon.setInterleaved
+     */
+    public void setInterleaved(boolean interleaved) {
+        this.interleaved = interleaved;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        chunk[count++] = (byte) b;
+        if (count == chunk.length)
+            writeChunk();
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        ensureOpen();
+        if (off < 0 || len < 0 || len > b.length - off)
+            throw new IndexOutOfBoundsException();
+        while (len > 0) {
+            int n = Math.min(len, chunk.length - count);
+            System.arraycopy(b, off, chunk, count, n);
+            count += n;
+            off += n;
+            len -= n;
+            if (count == chunk.length)
+                writeChunk();
+        }
+    }
+
+    /**
+     * Writes buffered bytes as a frame, so everything written so far can be decoded from the underlying stream
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        writeChunk();
+        bw.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+        closed = true;
+        try {
+            writeChunk();
+        }
+        finally {
+            bw.close();
+        }
+    }
+
+    private void writeChunk() throws IOException {
+        if (count == 0)
+            return;
+        ByteBuffer bytes = ByteBuffer.wrap(chunk, 0, count);
+        CodeBook codeBook = CodeBook.of(FrequencyCounter.count(bytes, blockLength), blockLength, maxCodeLength);
+        FrameFormat.EncodedFrame frame = FrameFormat.encodeFrame(codeBook, true, interleaved,
+                new BufferedBitReader(bytes.duplicate()), count);
+        FrameFormat.writeFrame(bw, FrameFormat.storeIfLonger(frame, new BufferedBitReader(bytes)));
+        count = 0;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed)
+            throw new IOException("Stream is closed");
+    }
+}
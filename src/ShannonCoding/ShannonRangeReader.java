@@ -0,0 +1,251 @@
+package ShannonCoding;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @author Lukas
+ */
+
+/**
+ * Decodes byte ranges of the framed format without decoding what comes before them, thread safe.
+ *
+ * Frames are found through the index frame which Shannon.setIndexed writes at the end, data without one is
+ * indexed once by hopping over frame headers. Only frames which overlap a range are decoded. Recently decoded
+ * frames are kept in a least recently used cache of up to cacheSize bytes, so repeated reads of nearby ranges
+ * don't decode them again.
+ */
+public class ShannonRangeReader implements Closeable {
+
+    public static final long DEFAULT_CACHE_SIZE = 16 << 20;
+
+    //Mapped encoded file, null if encoded data is in memory
+    private final MappedInput input;
+    private final ByteBuffer data;
+    private final long size;
+
+    private final FrameFormat.Header header;
+    //Offset of original bytes and byte offset from the start of header of every frame
+    private final long[] originalOffsets;
+    private final long[] frameOffsets;
+    private final long length;
+
+    //Decoded frames by their number, in order of use
+    private final LinkedHashMap<Integer, byte[]> cache = new LinkedHashMap<>(16, 0.75f, true);
+    private long cachedBytes = 0;
+    private long cacheSize = DEFAULT_CACHE_SIZE;
+
+    public ShannonRangeReader(String encodedFile) throws IOException {
+        this(encodedFile, null);
+    }
+
+    /**
+     * @param models models which header can refer to, null if none
+     */
+    public ShannonRangeReader(String encodedFile, ModelCache models) throws IOException {
+        this(new MappedInput(encodedFile), null, models);
+    }
+
+    /**
+     * Reads encoded data between encoded's position and limit, which must not change while reader is used
+     * @param models models which header can refer to, null if none
+     */
+    public ShannonRangeReader(ByteBuffer encoded, ModelCache models) throws IOException {
+        this(null, encoded.slice(), models);
+    }
+
+    private ShannonRangeReader(MappedInput input, ByteBuffer data, ModelCache models) throws IOException {
+        this.input = input;
+        this.data = data;
+        this.size = input != null ? input.size() : data.remaining();
+        try {
+            long frameOffset;
+            try (BufferedBitReader br = reader(0, size)) {
+                this.header = FrameFormat.readHeader(br, models);
+                frameOffset = br.getBitPosition() / 8;
+            }
+
+            FrameFormat.Index index = readIndex();
+            if (index == null)
+                index = findFrames(frameOffset);
+            this.originalOffsets = index.originalOffsets;
+            this.frameOffsets = index.frameOffsets;
+            this.length = index.originalLength;
+        }
+        catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return number of bytes encoded data decodes to
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * @param cacheSize most bytes of decoded frames kept for later reads, 0 to keep none
+     */
+    public void setCacheSize(long cacheSize) {
+        synchronized (cache) {
+            this.cacheSize = cacheSize;
+            evict();
+        }
+    }
+
+    /**
+     * @return decoded bytes [offset, offset + length)
+     * @throws IndexOutOfBoundsException if range is not within length()
+     * @throws IOException if frames of the range are corrupted
+     */
+    public byte[] decodeRange(long offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || offset > this.length - length)
+            throw new IndexOutOfBoundsException("Range " + offset + " + " + length + " is out of " + this.length);
+
+        byte[] range = new byte[length];
+        int copied = 0;
+        //Last frame which starts at or before offset
+        int frame = Arrays.binarySearch(originalOffsets, offset);
+        if (frame < 0)
+            frame = -frame - 2;
+        //Frames of no bytes share offset with the next one, so the search can land on any of them
+        while (copied < length) {
+            byte[] decoded = frame(frame);
+            long frameOffset = offset + copied - originalOffsets[frame];
+            int count = (int) Math.min(length - copied, Math.max(0, decoded.length - frameOffset));
+            System.arraycopy(decoded, (int) Math.min(frameOffset, decoded.length), range, copied, count);
+            copied += count;
+            frame++;
+        }
+        return range;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (input != null)
+            input.close();
+    }
+
+    /**
+     * @return decoded bytes of frame, from cache if it was decoded recently
+     */
+    private byte[] frame(int frame) throws IOException {
+        synchronized (cache) {
+            byte[] decoded = cache.get(frame);
+            if (decoded != null)
+                return decoded;
+        }
+
+        //Frames are decoded outside of the lock, so readers of different frames don't wait for each other
+        long frameOffset = frameOffsets[frame];
+        long frameEnd = frame + 1 < frameOffsets.length ? frameOffsets[frame + 1] : size;
+        long originalLength = (frame + 1 < originalOffsets.length ? originalOffsets[frame + 1] : length)
+                - originalOffsets[frame];
+        byte[] decoded;
+        try (BufferedBitReader br = reader(frameOffset, frameEnd)) {
+            FrameFormat.Frame header = FrameFormat.readFrameHeader(br);
+            if (header.originalLength != originalLength
+                    || frameOffset + FrameFormat.FRAME_HEADER_LENGTH + (header.bitLength + 7) / 8 > frameEnd)
+                throw new IOException("Encoded data is corrupted");
+            decoded = new byte[header.originalLength];
+            try (BufferedBitWriter bw = new BufferedBitWriter(ByteBuffer.wrap(decoded))) {
+                FrameFormat.decodeFrame(br, this.header, header, bw);
+            }
+        }
+
+        synchronized (cache) {
+            if (decoded.length <= cacheSize && cache.put(frame, decoded) == null) {
+                cachedBytes += decoded.length;
+                evict();
+            }
+        }
+        return decoded;
+    }
+
+    /**
+     * Drops least recently used frames until cache fits cacheSize, caller holds cache's lock
+     */
+    private void evict() {
+        Iterator<Map.Entry<Integer, byte[]>> eldest = cache.entrySet().iterator();
+        while (cachedBytes > cacheSize && eldest.hasNext()) {
+            cachedBytes -= eldest.next().getValue().length;
+            eldest.remove();
+        }
+    }
+
+    /**
+     * @return index frame which ends encoded data, null if it has none
+     */
+    private FrameFormat.Index readIndex() throws IOException {
+        if (size < FrameFormat.FRAME_HEADER_LENGTH + FrameFormat.indexLength(0))
+            return null;
+        long indexOffset;
+        try (BufferedBitReader br = reader(size - 8, size)) {
+            indexOffset = (br.readBits(32) << 32) | br.readBits(32);
+        }
+        if (indexOffset < 0 || indexOffset > size - FrameFormat.FRAME_HEADER_LENGTH - FrameFormat.indexLength(0))
+            return null;
+
+        try (BufferedBitReader br = reader(indexOffset, size)) {
+            //Last 8 bytes of data without index are just coded blocks, so type is checked before it is read
+            if (br.peekBits(8) != FrameFormat.FRAME_INDEX)
+                return null;
+            FrameFormat.Frame frame = FrameFormat.readFrameHeader(br);
+            if (indexOffset + FrameFormat.FRAME_HEADER_LENGTH + (frame.bitLength + 7) / 8 != size)
+                return null;
+            return FrameFormat.readIndex(br, frame, indexOffset);
+        }
+    }
+
+    /**
+     * @return index of frames found by hopping over frame headers from frameOffset on
+     */
+    private FrameFormat.Index findFrames(long frameOffset) throws IOException {
+        FrameFormat.Index index = new FrameFormat.Index();
+        index.originalOffsets = new long[16];
+        index.frameOffsets = new long[16];
+        int count = 0;
+        while (frameOffset < size) {
+            if (frameOffset + FrameFormat.FRAME_HEADER_LENGTH > size)
+                throw new IOException("Encoded data is truncated");
+            FrameFormat.Frame frame;
+            try (BufferedBitReader br = reader(frameOffset, frameOffset + FrameFormat.FRAME_HEADER_LENGTH)) {
+                frame = FrameFormat.readFrameHeader(br);
+            }
+
+            if (count == index.frameOffsets.length) {
+                index.originalOffsets = Arrays.copyOf(index.originalOffsets, count * 2);
+                index.frameOffsets = Arrays.copyOf(index.frameOffsets, count * 2);
+            }
+            index.originalOffsets[count] = index.originalLength;
+            index.frameOffsets[count] = frameOffset;
+            count++;
+
+            frameOffset += FrameFormat.FRAME_HEADER_LENGTH + (frame.bitLength + 7) / 8;
+            index.originalLength += frame.originalLength;
+        }
+        if (frameOffset > size)
+            throw new IOException("Encoded data is truncated");
+        index.originalOffsets = Arrays.copyOf(index.originalOffsets, count);
+        index.frameOffsets = Arrays.copyOf(index.frameOffsets, count);
+        return index;
+    }
+
+    /**
+     * @return reader of bytes [from, to) of encoded data
+     */
+    private BufferedBitReader reader(long from, long to) {
+        if (input != null)
+            return input.reader(from, to);
+        ByteBuffer slice = data.duplicate();
+        slice.limit((int) to).position((int) from);
+        return new BufferedBitReader(slice.slice());
+    }
+}